@@ -17,8 +17,12 @@
 package de.darkblue.bongloader2;
 
 import de.darkblue.bongloader2.controller.DownloadController;
+import de.darkblue.bongloader2.controller.IntegrityScanner;
+import de.darkblue.bongloader2.controller.PartVerifier;
+import de.darkblue.bongloader2.controller.ServerAddressPool;
 import de.darkblue.bongloader2.model.AutodownloadLevel;
 import de.darkblue.bongloader2.model.Download;
+import de.darkblue.bongloader2.model.DownloadArchive;
 import de.darkblue.bongloader2.model.Recording;
 import de.darkblue.bongloader2.model.Recording.MovieFile.Quality;
 import de.darkblue.bongloader2.model.data.AbstractUpdateable;
@@ -84,6 +88,18 @@ public class Application extends AbstractUpdateable<Application> {
 
     private boolean headless = false;
 
+    /**
+     * if set, the application only checks the download list against
+     * the files on disk and quits
+     */
+    private ScanMode scanMode = ScanMode.NONE;
+
+    public static enum ScanMode {
+        NONE,
+        QUICK,
+        FULL
+    }
+
     private MainFrame mainFrame;
     private WebServiceServer webServer;
 
@@ -91,6 +107,7 @@ public class Application extends AbstractUpdateable<Application> {
     private DownloadController downloadController;
     private StorableList<Recording> recordingList;
     private StorableList<Download> downloadList;
+    private DownloadArchive downloadArchive;
 
     private ErrorLogHandler errorLogHandler = new ErrorLogHandler();
     private final Thread shutdownHook = new Thread("shutdown hook") {
@@ -130,8 +147,16 @@ public class Application extends AbstractUpdateable<Application> {
 
     public static void main(String[] args) {
         final Application application = new Application();
-        if (args.length > 0) {
-            application.setHeadless(args[0].equalsIgnoreCase("-headless"));
+        for (String arg : args) {
+            if (arg.equalsIgnoreCase("-headless")) {
+                application.setHeadless(true);
+            } else if (arg.equalsIgnoreCase("-scan")) {
+                application.setHeadless(true);
+                application.setScanMode(ScanMode.QUICK);
+            } else if (arg.equalsIgnoreCase("-fullscan")) {
+                application.setHeadless(true);
+                application.setScanMode(ScanMode.FULL);
+            }
         }
         application.start();
     }
@@ -152,6 +177,7 @@ public class Application extends AbstractUpdateable<Application> {
             LOGGER.log(Level.INFO, "Encoding is " + Charset.defaultCharset().name());
 
             convertOldConfigValues();
+            initServerAddressPinning();
 
             initShutdownHook();
 
@@ -162,8 +188,9 @@ public class Application extends AbstractUpdateable<Application> {
 
             ToolBox.init(config);
 
-            recordingList = new StorableList<Recording>(new File(WORKING_DIRECTORY, "recordings.xdata"), new Recording.RecordingMarshaller());
-            downloadList = new StorableList<Download>(PRIORITY_COMPARATOR, new File(WORKING_DIRECTORY, "downloads.xdata"), new AfterLoadingHook<Download>() {
+            recordingList = new StorableList<Recording>(new File(WORKING_DIRECTORY, "recordings.dat"),
+                    new Recording.RecordingCodec(), new Recording.RecordingMarshaller());
+            downloadList = new StorableList<Download>(PRIORITY_COMPARATOR, new File(WORKING_DIRECTORY, "downloads.dat"), new AfterLoadingHook<Download>() {
 
                 @Override
                 public void doAfterLoading(Download item) {
@@ -175,7 +202,16 @@ public class Application extends AbstractUpdateable<Application> {
                     }
                 }
 
-            }, new Download.DownloadMarshaller());
+            }, new Download.DownloadCodec(), new Download.DownloadMarshaller());
+            downloadArchive = new DownloadArchive(new File(WORKING_DIRECTORY, "downloads-archive.dat"));
+
+            if (scanMode != ScanMode.NONE) {
+                final PartVerifier partVerifier = new PartVerifier(config, new ServerAddressPool());
+                new IntegrityScanner(downloadList, partVerifier, scanMode == ScanMode.FULL).scan();
+                shutdownApplication(false);
+                return;
+            }
+
             downloadController = new DownloadController(this, recordingList, downloadList);
 
             if (!isHeadless()) {
@@ -206,6 +242,14 @@ public class Application extends AbstractUpdateable<Application> {
         this.headless = headless;
     }
 
+    public ScanMode getScanMode() {
+        return scanMode;
+    }
+
+    public void setScanMode(ScanMode scanMode) {
+        this.scanMode = scanMode;
+    }
+
     public File getWorkingDirectory() {
         return WORKING_DIRECTORY;
     }
@@ -217,17 +261,21 @@ public class Application extends AbstractUpdateable<Application> {
     public void terminateAndCleanup() {
         LOGGER.info("Getting termination request");
         removeShutdownHook();
-        if (downloadController != null) {
-            downloadController.shutdown();
-        }
+        try {
+            if (downloadController != null) {
+                downloadController.shutdown();
+            }
 
-        if (mainFrame != null) {
-            mainFrame.setVisible(false);
-            mainFrame.dispose();
-        }
+            if (mainFrame != null) {
+                mainFrame.setVisible(false);
+                mainFrame.dispose();
+            }
 
-        if (webServer != null) {
-            webServer.shutdown();
+            if (webServer != null) {
+                webServer.shutdown();
+            }
+        } finally {
+            flushLists();
         }
 
         LOGGER.log(Level.INFO, "Finished BongLoader {0}", config.get(ConfigurationKey.VERSION));
@@ -252,6 +300,10 @@ public class Application extends AbstractUpdateable<Application> {
         return downloadList;
     }
 
+    public DownloadArchive getDownloadArchive() {
+        return downloadArchive;
+    }
+
     public DownloadController getDownloadController() {
         return downloadController;
     }
@@ -299,9 +351,26 @@ public class Application extends AbstractUpdateable<Application> {
         Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
+    /**
+     * the lists are saved in the background with a delay, so they are written
+     * here no matter if (or in what state) the download controller exists
+     */
+    private void flushLists() {
+        if (downloadList != null) {
+            downloadList.flush();
+        }
+        if (recordingList != null) {
+            recordingList.flush();
+        }
+    }
+
     private void removeShutdownHook() {
         LOGGER.info("Unregistering shutdown hook");
-        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            //we are called by the shutdown hook itself
+        }
     }
 
     public void addErrorHandler(ErrorHandler errorHandler) {
@@ -316,6 +385,22 @@ public class Application extends AbstractUpdateable<Application> {
         return config.get(ConfigurationKey.VERSION);
     }
 
+    /**
+     * connecting to a specific address of a download host (see ServerAddressPool)
+     * needs our own Host header, which the jvm drops unless restricted headers
+     * are allowed. The jvm reads this setting once for all http connections of
+     * the process when the first one is opened, so it can't be limited to the
+     * download connections - it is only set if pinning is enabled. Only the
+     * pinned connections set a Host header themselves.
+     */
+    private void initServerAddressPinning() {
+        if (config.getAsBoolean(ConfigurationKey.PIN_SERVER_ADDRESSES, true)) {
+            System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
+        } else {
+            LOGGER.info("Pinning of server addresses is disabled");
+        }
+    }
+
     private void convertOldConfigValues() {
         //convert from old HQ, NQ download list to new AutodownloadLevel config
         if (config.contains(ConfigurationKey.QUALITY_LEVELS_TO_DOWNLOAD)) {
@@ -30,8 +30,18 @@ public enum ConfigurationKey {
         VERSION(true),
 	CURRENT_DIR(true),
         RECORDLIST_UPDATE_TIME(true),
+        RECORDLIST_MAX_UPDATE_TIME(true),
 	MAX_SIMULTANEOUS_DOWNLOADS,
         DOWNLOAD_PARTS(true),
+        MAX_CONNECTIONS,
+        PREFETCH_DOWNLOADS(true),
+        VERIFY_ON_RESUME(true),
+        SHUTDOWN_TIMEOUT(true),
+        API_CONNECT_TIMEOUT(true),
+        API_READ_TIMEOUT(true),
+        API_SESSION,
+        API_SESSION_USER,
+        API_SESSION_EXPIRY,
 	QUALITY_LEVELS_TO_DOWNLOAD(true),
         AUTODOWNLOAD_LEVEL,
         MAX_DOWNLOAD_SPEED,
@@ -47,8 +57,11 @@ public enum ConfigurationKey {
         ALLOW_AUTO_UPDATE,
 	USERNAME,
 	PASSWORD,
+        ACCOUNTS,
         INVALID_CHAR_REPLACEMENT(true),
-        DELETE_AFTER_DOWNLOAD_GRACE_PERIOD(true);
+        DELETE_AFTER_DOWNLOAD_GRACE_PERIOD(true),
+        ARCHIVE_AFTER_DAYS(true),
+        PIN_SERVER_ADDRESSES(true);
 
 	private boolean isVolatile;
 
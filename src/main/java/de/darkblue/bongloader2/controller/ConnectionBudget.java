@@ -0,0 +1,107 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.controller;
+
+import de.darkblue.bongloader2.Configuration;
+import de.darkblue.bongloader2.ConfigurationKey;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares a global amount of connections between all running
+ * downloaders. A single running download may use the whole budget
+ * while many running downloads each get a smaller share, so the
+ * total amount of open connections stays the same.
+ *
+ * @author Florian Frankenberger
+ */
+public class ConnectionBudget {
+
+    private final Configuration config;
+    private final List<Downloader> downloaders = new ArrayList<Downloader>();
+
+    public ConnectionBudget(Configuration config) {
+        this.config = config;
+    }
+
+    public synchronized void register(Downloader downloader) {
+        if (!this.downloaders.contains(downloader)) {
+            this.downloaders.add(downloader);
+        }
+        this.notifyAll();
+    }
+
+    public synchronized void unregister(Downloader downloader) {
+        this.downloaders.remove(downloader);
+        this.notifyAll();
+    }
+
+    /**
+     * returns the total amount of connections that may be open at
+     * the same time. If not configured explicitly this is the amount
+     * of parts per download times the amount of download slots.
+     *
+     * @return
+     */
+    public int getTotalConnections() {
+        final int defaultConnections = config.getAsInt(ConfigurationKey.DOWNLOAD_PARTS)
+                * config.getAsInt(ConfigurationKey.MAX_SIMULTANEOUS_DOWNLOADS);
+        return Math.max(1, config.getAsInt(ConfigurationKey.MAX_CONNECTIONS, defaultConnections));
+    }
+
+    /**
+     * returns the amount of connections the given downloader is
+     * allowed to use right now. Downloaders that registered first
+     * get the remainder of an uneven split. If there are more downloaders
+     * than connections, the ones that registered last get no connection
+     * until another downloader is finished - the budget is never exceeded.
+     *
+     * @param downloader
+     * @return
+     */
+    public synchronized int getAllowance(Downloader downloader) {
+        final int index = this.downloaders.indexOf(downloader);
+        if (index < 0) {
+            return 0;
+        }
+
+        final int totalConnections = getTotalConnections();
+        final int share = totalConnections / this.downloaders.size();
+        final int remainder = totalConnections % this.downloaders.size();
+        return share + (index < remainder ? 1 : 0);
+    }
+
+    /**
+     * blocks until the budget was reallocated or the timeout
+     * has passed.
+     *
+     * @param timeout in ms
+     * @throws InterruptedException
+     */
+    public synchronized void awaitReallocation(long timeout) throws InterruptedException {
+        this.wait(timeout);
+    }
+
+    /**
+     * wakes up all downloaders so they can adapt to a changed
+     * configuration.
+     */
+    public synchronized void reallocate() {
+        this.notifyAll();
+    }
+
+}
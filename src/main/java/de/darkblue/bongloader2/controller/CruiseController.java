@@ -75,16 +75,13 @@ public class CruiseController extends AbstractUpdateable<CruiseController> {
         return this.runningDownloads > 0;
     }
     
+    /**
+     * pauses all downloads without storing the paused state. Stopping
+     * the running downloads is up to the download controller.
+     */
     public void shutdown() {
         this.paused = true;
         notifyOnUpdate();
-        while (areDownloadsRunning()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                //ignore
-            }
-        }
     }
 
     public void setPaused(boolean paused) {
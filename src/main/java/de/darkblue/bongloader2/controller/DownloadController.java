@@ -21,19 +21,32 @@ import de.darkblue.bongloader2.*;
 import de.darkblue.bongloader2.iface.ApiInterface;
 import de.darkblue.bongloader2.iface.ApiInterfaceException;
 import de.darkblue.bongloader2.iface.ApiInterfaceV3;
+import de.darkblue.bongloader2.model.ArchivedDownload;
 import de.darkblue.bongloader2.model.AutodownloadLevel;
 import de.darkblue.bongloader2.model.Download;
 import de.darkblue.bongloader2.model.Recording;
 import de.darkblue.bongloader2.model.Recording.MovieFile;
 import de.darkblue.bongloader2.model.Recording.MovieFile.Quality;
+import de.darkblue.bongloader2.model.data.Batch;
 import de.darkblue.bongloader2.model.data.Callback;
+import de.darkblue.bongloader2.model.data.ListIndex;
 import de.darkblue.bongloader2.model.data.StorableList;
 import de.darkblue.bongloader2.model.data.Updateable;
 import de.darkblue.bongloader2.model.data.UpdateableListener;
+import de.darkblue.bongloader2.utils.Crc32;
 import de.darkblue.bongloader2.utils.ToolBox;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,21 +60,79 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
     private static final Logger LOGGER = Logger.getLogger(DownloadController.class.getCanonicalName());
 
     private final Application application;
-    private final ApiInterface api = new ApiInterfaceV3();
 
     private final StorableList<Recording> recordingList;
     private final StorableList<Download> downloadList;
 
+    private final ListIndex<Integer, Download> downloadsByRecording;
+    private final ListIndex<Boolean, Download> downloadsByFinished;
+    private final ListIndex<Integer, Download> downloadsByPriority;
+    private final ListIndex<Boolean, Recording> recordingsByDeletionMark;
+
     private final List<Downloader> downloaders = new ArrayList<Downloader>();
     private final CruiseController cruiseController;
+    private final ConnectionBudget connectionBudget;
+    private final ServerAddressPool serverAddressPool = new ServerAddressPool();
+    private final DownloadPrefetcher downloadPrefetcher;
 
     private volatile boolean shutdown = false;
-    private long lastRecordingsUpdate = 0L;
+    private volatile long shutdownDeadline = Long.MAX_VALUE;
     private long lastDownloadsUpdate = 0L;
+    private long lastArchiving = 0L;
+
+    /**
+     * the sync workers by account name (the account of USERNAME is named "")
+     */
+    private final Map<String, AccountSync> accountSyncs = new LinkedHashMap<String, AccountSync>();
+    private final DeletionWorker deletionWorker = new DeletionWorker();
+    private final AutoEnqueueWorker autoEnqueueWorker = new AutoEnqueueWorker();
+
+    /**
+     * the accounts whose recordings were synchronized since the automatic
+     * downloads were enqueued the last time
+     */
+    private final BlockingQueue<String> autoEnqueueQueue = new LinkedBlockingQueue<String>();
+    private final BlockingQueue<Recording> deletionQueue = new LinkedBlockingQueue<Recording>();
+    private final Set<Recording> queuedDeletions = Collections.synchronizedSet(new HashSet<Recording>());
+    private final ExecutorService deletionExecutor = Executors.newFixedThreadPool(DELETION_PARALLELISM, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "RecordingDeleter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private ControllerState controllerState = DownloadController.ControllerState.UNKNOWN;
     private final Set<UpdateableListener<DownloadController>> listeners = new HashSet<UpdateableListener<DownloadController>>();
 
+    /**
+     * in seconds: a running download with less time left gets its
+     * successor prewarmed
+     */
+    private static final long PREWARM_ETA = 5;
+
+    /**
+     * how many recordings are deleted on the server at the same time
+     */
+    private static final int DELETION_PARALLELISM = 4;
+
+    /**
+     * a recording that could not be deleted this often is not tried again
+     */
+    private static final int MAX_DELETION_ATTEMPTS = 3;
+
+    /**
+     * in ms: how often the finished downloads are checked for
+     * downloads that should be archived
+     */
+    private static final long ARCHIVE_INTERVAL = 60L * 60L * 1000L;
+
+    /**
+     * the name of the account configured by USERNAME and PASSWORD
+     */
+    private static final String PRIMARY_ACCOUNT = "";
+
     private static final Comparator<Download> DOWNLOADS_PRIORITY_COMPARATOR = new Comparator<Download>() {
 
         @Override
@@ -82,73 +153,102 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
         ERROR
     }
 
-    private final Set<Recording> removedRecordings = new HashSet<Recording>();
+    private final Set<Recording> removedRecordings = Collections.synchronizedSet(new HashSet<Recording>());
+    private final Map<Recording, Integer> deletionFailures = new ConcurrentHashMap<Recording, Integer>();
 
     public DownloadController(Application application, StorableList<Recording> recordingsList, StorableList<Download> downloadList) {
         this.application = application;
         this.recordingList = recordingsList;
         this.downloadList = downloadList;
 
+        this.downloadsByRecording = downloadList.addIndex(new Callback<Integer, Download>() {
+            @Override
+            public Integer call(Download value) {
+                return value.getRecordingId();
+            }
+        });
+        this.downloadsByFinished = downloadList.addIndex(new Callback<Boolean, Download>() {
+            @Override
+            public Boolean call(Download value) {
+                return value.isDownloaded();
+            }
+        });
+        this.downloadsByPriority = downloadList.addSortedIndex(new Callback<Integer, Download>() {
+            @Override
+            public Integer call(Download value) {
+                return value.getPriority();
+            }
+        });
+        this.recordingsByDeletionMark = recordingsList.addIndex(new Callback<Boolean, Recording>() {
+            @Override
+            public Boolean call(Recording value) {
+                return value.markedDeleted();
+            }
+        });
+
         this.cruiseController = new CruiseController(application);
+        this.connectionBudget = new ConnectionBudget(application.getConfig());
+        this.downloadPrefetcher = new DownloadPrefetcher(application.getConfig(), serverAddressPool);
         application.getConfig().addConfigurationUpdateListener(this);
 
-        LOGGER.info("Using Api Interface: " + this.api.getVersion());
+        final AccountSync primaryAccountSync = new AccountSync(PRIMARY_ACCOUNT, null, null);
+        this.accountSyncs.put(PRIMARY_ACCOUNT, primaryAccountSync);
+        LOGGER.info("Using Api Interface: " + primaryAccountSync.api.getVersion());
     }
 
     /**
-     * shuts down the controller and waits
-     * for it to actually stop.
+     * shuts down the controller and waits for it to actually stop, but
+     * no longer than the configured shutdown timeout. Afterwards the
+     * progress of all downloads is saved.
      */
     public void shutdown() {
         if (!shutdown) {
+            this.shutdownDeadline = System.currentTimeMillis()
+                    + application.getConfig().getAsLong(ConfigurationKey.SHUTDOWN_TIMEOUT, 8L) * 1000L;
+
             //first stop all downloads
             this.cruiseController.shutdown();
 
             this.shutdown = true;
+            this.interrupt();
             try {
-                this.join();
+                this.join(getTimeUntilDeadline());
             } catch (InterruptedException e) {
                 //ignore
             }
+
+            if (this.isAlive()) {
+                LOGGER.warning("Download controller did not stop in time");
+            }
+            checkpoint();
         }
     }
 
+    private long getTimeUntilDeadline() {
+        return Math.max(1L, this.shutdownDeadline - System.currentTimeMillis());
+    }
+
+    /**
+     * saves the current state of all downloads and recordings
+     */
+    private void checkpoint() {
+        this.downloadList.flush();
+        this.recordingList.flush();
+        LOGGER.info("Saved progress of all downloads");
+    }
+
     public CruiseController getCruiseController() {
         return cruiseController;
     }
 
     @Override
     public void run() {
-        final Configuration config = application.getConfig();
-
         try {
-            while (!shutdown) {
-                try {
-                    if (System.currentTimeMillis() - lastRecordingsUpdate > config.getAsInt(ConfigurationKey.RECORDLIST_UPDATE_TIME)) {
-                        lastRecordingsUpdate = System.currentTimeMillis();
-                        if (config.isConfigured(ConfigurationKey.USERNAME) && config.isConfigured(ConfigurationKey.PASSWORD)) {
-                            try {
-                                downloadRecordingsList();
-                            } catch (Error e) {
-                                throw e;
-                            } catch (Exception e) {
-                                this.setControllerState(ControllerState.ERROR);
-                                throw e;
-                            }
-
-                            deleteMarkedRecordings();
-                            enqueueAutomaticDownloads();
-                        } else {
-                            this.setControllerState(ControllerState.NO_USERNAME_AND_OR_PASSWORD);
-                            LOGGER.info("Could not update recordings because username and/or password are not set yet.");
-                        }
-                    }
-                } catch (Error e) {
-                    throw e;
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Exception occured", e);
-                }
+            warmRestart();
 
+            //this thread only schedules the downloads, the communication
+            //with the server is done by the workers
+            while (!shutdown) {
                 try {
                     updateDownloads();
                 } catch (RuntimeException e) {
@@ -156,13 +256,31 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
                 } catch (Exception e) {
                     LOGGER.log(Level.WARNING, "Exception occured", e);
                 }
+                if (System.currentTimeMillis() - lastArchiving >= ARCHIVE_INTERVAL) {
+                    lastArchiving = System.currentTimeMillis();
+                    try {
+                        archiveFinishedDownloads();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Could not archive the finished downloads", e);
+                    }
+                }
                 try {
-                    Thread.sleep(500);
+                    //a finished download reallocates the budget, so we can fill
+                    //its slot right away
+                    connectionBudget.awaitReallocation(500);
                 } catch (InterruptedException e) {
                     //ignore
                 }
             }
 
+            synchronized (accountSyncs) {
+                for (AccountSync accountSync : accountSyncs.values()) {
+                    accountSync.interrupt();
+                }
+            }
+            deletionWorker.interrupt();
+            deletionExecutor.shutdownNow();
+            autoEnqueueWorker.interrupt();
             stopAllDownloaders();
 
         } catch (Exception e) {
@@ -172,6 +290,284 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
         }
     }
 
+    /**
+     * resumes the downloads that are known from the last run right away
+     * and only then starts the workers that synchronize the recordings with
+     * the server. So a slow or unreachable server does not keep the downloads
+     * waiting after a restart.
+     */
+    private void warmRestart() {
+        try {
+            updateDownloads();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Exception occured", e);
+        }
+
+        updateAccounts();
+        deletionWorker.start();
+        autoEnqueueWorker.start();
+    }
+
+    /**
+     * starts a sync worker for every configured account and stops the workers
+     * of accounts that are not configured anymore. The recordings of such an
+     * account are kept.
+     */
+    private void updateAccounts() {
+        final Map<String, String> accounts = new LinkedHashMap<String, String>();
+        for (String entry : application.getConfig().getAsList(ConfigurationKey.ACCOUNTS, "\\|", Collections.<String>emptyList())) {
+            final int separator = entry.indexOf(':');
+            if (separator > 0) {
+                accounts.put(entry.substring(0, separator).trim(), entry.substring(separator + 1));
+            } else if (!entry.trim().isEmpty()) {
+                LOGGER.log(Level.WARNING, "Ignoring account without password: {0}", entry);
+            }
+        }
+
+        synchronized (accountSyncs) {
+            for (Iterator<Map.Entry<String, AccountSync>> it = accountSyncs.entrySet().iterator(); it.hasNext();) {
+                final Map.Entry<String, AccountSync> entry = it.next();
+                final AccountSync accountSync = entry.getValue();
+                if (!entry.getKey().equals(PRIMARY_ACCOUNT)
+                        && !accountSync.getPassword().equals(accounts.get(entry.getKey()))) {
+                    accountSync.stopSync();
+                    it.remove();
+                    LOGGER.log(Level.INFO, "Stopped synchronizing account {0}", entry.getKey());
+                }
+            }
+
+            for (Map.Entry<String, String> account : accounts.entrySet()) {
+                if (!accountSyncs.containsKey(account.getKey())) {
+                    accountSyncs.put(account.getKey(), new AccountSync(account.getKey(), account.getKey(), account.getValue()));
+                    LOGGER.log(Level.INFO, "Synchronizing account {0}", account.getKey());
+                }
+            }
+
+            for (AccountSync accountSync : accountSyncs.values()) {
+                if (accountSync.getState() == Thread.State.NEW && !shutdown) {
+                    accountSync.start();
+                }
+            }
+        }
+    }
+
+    /**
+     * synchronizes the recordings of one account with the server. Every
+     * account has its own session and decides on its own when the recordings
+     * are polled next.
+     */
+    private class AccountSync extends Thread {
+
+        private final String account;
+        private final String username;
+        private final String password;
+        private final ApiInterface api;
+        private final PollScheduler pollScheduler;
+        private volatile long nextUpdate = 0L;
+        private volatile boolean stopped = false;
+
+        /**
+         * @param account the name of the account (the namespace of its recordings)
+         * @param username or null to use the configured USERNAME
+         * @param password or null to use the configured PASSWORD
+         */
+        public AccountSync(String account, String username, String password) {
+            super(account.equals(PRIMARY_ACCOUNT) ? "RecordingsSync" : "RecordingsSync-" + account);
+            this.setDaemon(true);
+            this.account = account;
+            this.username = username;
+            this.password = password;
+            //only the session of the primary account is stored
+            this.api = new ApiInterfaceV3(application.getConfig(), account.equals(PRIMARY_ACCOUNT));
+            this.pollScheduler = new PollScheduler(application.getConfig());
+        }
+
+        public String getUsername() {
+            return username == null ? application.getConfig().get(ConfigurationKey.USERNAME, null) : username;
+        }
+
+        public String getPassword() {
+            return password == null ? application.getConfig().get(ConfigurationKey.PASSWORD, null) : password;
+        }
+
+        /**
+         * polls the recordings as soon as possible
+         */
+        public void requestUpdate() {
+            this.pollScheduler.reset();
+            this.nextUpdate = 0L;
+            this.interrupt();
+        }
+
+        public void stopSync() {
+            this.stopped = true;
+            this.interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown && !stopped) {
+                final long waitTime = nextUpdate - System.currentTimeMillis();
+                if (waitTime < 0) {
+                    final boolean changed = synchronizeRecordings(this);
+                    final long delay = pollScheduler.getNextDelay(changed, api.getExpectedRecordings());
+                    nextUpdate = System.currentTimeMillis() + delay;
+                    LOGGER.log(Level.FINE, "Next update of the recordings of {0} in {1} ms", new Object[] {this, delay});
+                } else {
+                    try {
+                        Thread.sleep(Math.min(waitTime + 1, 1000L));
+                    } catch (InterruptedException e) {
+                        //ignore
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return true if the list changed since the last call
+         */
+        private boolean downloadRecordingsList() throws ApiInterfaceException, ReportableException {
+            final List<Recording> newRecordings = this.api.downloadRecordingsList(getUsername(), getPassword());
+            if (newRecordings != null) {
+                mergeRecordings(account, newRecordings);
+                LOGGER.log(Level.FINE, "Updated/inserted {0} recordings of {1}", new Object[] {newRecordings.size(), this});
+            }
+
+            setControllerState(ControllerState.CONNECTED);
+            return newRecordings != null;
+        }
+
+        @Override
+        public String toString() {
+            return account.equals(PRIMARY_ACCOUNT) ? "primary account" : "account " + account;
+        }
+    }
+
+    /**
+     * deletes the recordings that are put in the deletion queue. All recordings
+     * that are queued at once are deleted as one batch.
+     */
+    private class DeletionWorker extends Thread {
+
+        public DeletionWorker() {
+            super("RecordingsDeletion");
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                final List<Recording> batch = new ArrayList<Recording>();
+                try {
+                    batch.add(deletionQueue.take());
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                deletionQueue.drainTo(batch);
+
+                final Map<String, List<Recording>> batchesByAccount = new HashMap<String, List<Recording>>();
+                for (Recording recording : batch) {
+                    List<Recording> accountBatch = batchesByAccount.get(recording.getAccount());
+                    if (accountBatch == null) {
+                        accountBatch = new ArrayList<Recording>();
+                        batchesByAccount.put(recording.getAccount(), accountBatch);
+                    }
+                    accountBatch.add(recording);
+                }
+
+                for (Map.Entry<String, List<Recording>> accountBatch : batchesByAccount.entrySet()) {
+                    final AccountSync accountSync;
+                    synchronized (accountSyncs) {
+                        accountSync = accountSyncs.get(accountBatch.getKey());
+                    }
+                    try {
+                        if (accountSync == null) {
+                            LOGGER.log(Level.WARNING, "Can not delete {0} - account is not configured anymore", accountBatch.getValue());
+                        } else {
+                            removeRecordings(accountSync, accountBatch.getValue());
+                        }
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Could not update the recordings after deleting", e);
+                    } finally {
+                        queuedDeletions.removeAll(accountBatch.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * enqueues the automatic downloads after recordings were synchronized.
+     * All synchronizations that are queued at once are handled with one pass
+     * over the recordings.
+     */
+    private class AutoEnqueueWorker extends Thread {
+
+        public AutoEnqueueWorker() {
+            super("AutoEnqueue");
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                final List<String> accounts = new ArrayList<String>();
+                try {
+                    accounts.add(autoEnqueueQueue.take());
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                autoEnqueueQueue.drainTo(accounts);
+
+                try {
+                    enqueueAutomaticDownloads();
+
+                    //new downloads may have been enqueued
+                    connectionBudget.reallocate();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Could not enqueue the automatic downloads after synchronizing " + accounts, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * updates the recordings of the given account, queues the recordings that
+     * are marked for deletion and requests the automatic downloads from the
+     * auto enqueue worker
+     *
+     * @param accountSync
+     * @return true if the recordings list changed
+     */
+    private boolean synchronizeRecordings(AccountSync accountSync) {
+        boolean changed = false;
+        try {
+            if (accountSync.getUsername() != null && accountSync.getPassword() != null) {
+                try {
+                    changed = accountSync.downloadRecordingsList();
+                } catch (Error e) {
+                    throw e;
+                } catch (Exception e) {
+                    this.setControllerState(ControllerState.ERROR);
+                    throw e;
+                }
+
+                deleteMarkedRecordings();
+                autoEnqueueQueue.offer(accountSync.account);
+            } else {
+                this.setControllerState(ControllerState.NO_USERNAME_AND_OR_PASSWORD);
+                LOGGER.info("Could not update recordings because username and/or password are not set yet.");
+            }
+        } catch (Error e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Exception occured", e);
+        }
+        return changed;
+    }
+
     public ControllerState getControllerState() {
         return controllerState;
     }
@@ -183,29 +579,74 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
     /**
      * checks all recordings for a deletation marking. If this marking is found, it
      * is checked if there are no more incomplete downloads associated with this
-     * recording. If this is also true, the recording gets deleted (as requested
-     * by the user before).
+     * recording. If this is also true, the recording is handed to the deletion
+     * worker (as requested by the user before).
      */
-    private void deleteMarkedRecordings() throws ApiInterfaceException, ReportableException {
+    private void deleteMarkedRecordings() {
         final long gracePeriod = application.getConfig().getAsLong(ConfigurationKey.DELETE_AFTER_DOWNLOAD_GRACE_PERIOD) * 1000L;
         final Date now = new Date();
 
-        for (Recording recording : recordingList.getAll()) {
-            if (recording.markedDeleted()) {
-                final long time = now.getTime() - recording.getFirstSeen().getTime();
+        for (Recording recording : recordingsByDeletionMark.get(true)) {
+            final long time = now.getTime() - recording.getFirstSeen().getTime();
 
-                //now check if there is one download in the list associated with this recording
-                if (!hasRunningDownloads(recording) && time >= gracePeriod) {
-                    LOGGER.log(Level.INFO, "Deleting {0}", recording);
-                    removeRecording(recording);
+            //now check if there is one download in the list associated with this recording
+            if (!hasRunningDownloads(recording) && time >= gracePeriod
+                    && getDeletionFailures(recording) < MAX_DELETION_ATTEMPTS
+                    && queuedDeletions.add(recording)) {
+                deletionQueue.offer(recording);
+            }
+        }
+    }
+
+    /**
+     * moves the downloads that were finished more than the configured
+     * number of days ago from the download list to the download archive,
+     * so the list only contains the downloads that are still of interest
+     *
+     * @throws IOException if the downloads could not be archived, they
+     *                     are kept in the download list then
+     */
+    private void archiveFinishedDownloads() throws IOException {
+        final long archiveAfterDays = application.getConfig().getAsLong(ConfigurationKey.ARCHIVE_AFTER_DAYS, 30L);
+        if (archiveAfterDays <= 0) {
+            return;
+        }
+        final long deadline = System.currentTimeMillis() - archiveAfterDays * 24L * 60L * 60L * 1000L;
+
+        final List<Download> downloads = new ArrayList<Download>();
+        final List<ArchivedDownload> archivedDownloads = new ArrayList<ArchivedDownload>();
+        for (Download download : downloadsByFinished.get(true)) {
+            Date downloadedAt = download.getDownloadedAt();
+            if (downloadedAt == null) {
+                //older versions did not record when a download was finished
+                final long lastModified = download.getTargetFile().lastModified();
+                if (lastModified == 0L) {
+                    continue;
                 }
+                downloadedAt = new Date(lastModified);
+            }
+            if (downloadedAt.getTime() < deadline) {
+                downloads.add(download);
+                archivedDownloads.add(ArchivedDownload.of(download, downloadedAt));
             }
         }
+
+        if (!downloads.isEmpty()) {
+            //the downloads are only removed once they are safely archived
+            application.getDownloadArchive().archive(archivedDownloads);
+            downloadList.batch(new Batch<Download>() {
+                @Override
+                public void apply(StorableList<Download> list) {
+                    list.delete(downloads);
+                }
+            });
+            LOGGER.log(Level.INFO, "Archived {0} finished downloads", downloads.size());
+        }
     }
 
     public boolean hasRunningDownloads(Recording recording) {
-        for (Download download : downloadList.getAll()) {
-            if (download.getRecording().equals(recording) && !download.isDownloaded()) {
+        for (Download download : downloadsByRecording.get(recording.getId())) {
+            if (!download.isDownloaded()) {
                 return true;
             }
         }
@@ -226,13 +667,9 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
                 this.downloadList.delete(download);
                 LOGGER.log(Level.FINE, "Removed {0} because it was invalid", download);
             } else {
-                if (download.getTotalBytes() <= 0) {
-                    //not initialized - we do this now:
-                    try {
-                        download.setTotalBytes(ToolBox.getFileSize(application.getConfig(), download.getMovieFile().getDownloadUrl()));
-                    } catch (IOException e) {
-                        LOGGER.log(Level.WARNING, "Could not get file size for {0}", download);
-                    }
+                if (download.getTotalBytes() <= 0 && !download.isDownloaded()) {
+                    //not initialized - this is done in the background
+                    downloadPrefetcher.resolveSize(download);
                 }
 
                 //check if a downloaded file could not be renamed for some reasons, and check
@@ -248,7 +685,9 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
 
         }
 
-        sortedDownloads = this.downloadList.getAll(DOWNLOADS_PRIORITY_COMPARATOR);
+        //from here on only the unfinished downloads matter
+        sortedDownloads = downloadsByFinished.get(false);
+        Collections.sort(sortedDownloads, DOWNLOADS_PRIORITY_COMPARATOR);
 
         boolean changes = false;
 
@@ -290,6 +729,9 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
                         if (movieFile.isAutoEnqueued()) {
                             movieFile.setAutoDownloaded(true);
                         }
+                        final Crc32 checksum = downloader.getDownload().calculateChecksum();
+                        LOGGER.log(Level.INFO, "Checksum (CRC-32) of {0}: {1}",
+                                new Object[] { downloader.getDownload(), checksum == null ? "unknown" : checksum.toHexString() });
                         downloader.getDownload().setDownloaded(true);
 
                         //rename download file to target file
@@ -297,7 +739,7 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
                         LOGGER.log(Level.INFO, "Renamed {0} to {1}.",
                                 new Object[] { downloader.getDownload().getDownloadFile(), downloader.getDownload().getTargetFile() });
 
-                        recordingList.save();
+                        recordingList.save(downloader.getDownload().getRecording());
                     }
 
                 }
@@ -330,10 +772,11 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
             if (index < sortedDownloads.size()) {
                 final Download download = sortedDownloads.get(index);
                 checkLegacyFilename(download);
-                final Downloader downloader = new Downloader(cruiseController, download, application.getConfig());
+                final Downloader downloader = new Downloader(cruiseController, connectionBudget, serverAddressPool, download, application.getConfig());
                 downloaders.add(downloader);
                 download.setDownloading(true);
                 downloader.start();
+                downloadPrefetcher.forget(download);
                 LOGGER.log(Level.INFO, "Now downloading {0}", download);
                 changes = true;
             } else {
@@ -341,6 +784,8 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
             }
         }
 
+        prefetchUpcomingDownloads(sortedDownloads, downloadSlots);
+
         if (changes
                 || System.currentTimeMillis() - lastDownloadsUpdate > 10000) {
             this.downloadList.save();
@@ -348,6 +793,43 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
         }
     }
 
+    /**
+     * looks ahead at the next pending downloads in priority order. Their
+     * size is resolved early and if a running download is about to finish
+     * a connection to the server of its successor is opened, so the handoff
+     * happens without a gap.
+     *
+     * @param sortedDownloads
+     * @param downloadSlots
+     */
+    private void prefetchUpcomingDownloads(List<Download> sortedDownloads, int downloadSlots) {
+        if (downloadSlots == 0) {
+            return;
+        }
+
+        boolean slotFreeSoon = downloaders.size() < downloadSlots;
+        for (Downloader downloader : downloaders) {
+            final Long eta = downloader.getDownload().getEta();
+            slotFreeSoon |= eta != null && eta <= PREWARM_ETA;
+        }
+
+        final int lookAhead = application.getConfig().getAsInt(ConfigurationKey.PREFETCH_DOWNLOADS, 2);
+        int counter = 0;
+        for (Download download : sortedDownloads) {
+            if (counter >= lookAhead) {
+                break;
+            }
+            if (!download.isDownloading() && !download.isDownloaded()) {
+                if (slotFreeSoon) {
+                    downloadPrefetcher.prewarm(download);
+                } else {
+                    downloadPrefetcher.resolveSize(download);
+                }
+                counter++;
+            }
+        }
+    }
+
     /**
      * in earlier days we downloaded the data directly to
      * the target file (this has obviously some disadvantages),
@@ -368,16 +850,26 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
     }
 
     private void stopAllDownloaders() {
+        //shutdown() interrupts this thread to wake it up - that interrupt
+        //may still be pending and would end the first join immediately
+        Thread.interrupted();
+
         LOGGER.info("Stopping all downloads");
+        downloadPrefetcher.shutdown();
         for (Downloader downloader : downloaders) {
             downloader.shutdown();
         }
 
         for (Downloader downloader : downloaders) {
-            try {
-                downloader.join();
-            } catch (InterruptedException e) {
-                //ignore
+            while (downloader.isAlive() && System.currentTimeMillis() < this.shutdownDeadline) {
+                try {
+                    downloader.join(getTimeUntilDeadline());
+                } catch (InterruptedException e) {
+                    //ignore - the downloaders get time until the deadline anyway
+                }
+            }
+            if (downloader.isAlive()) {
+                LOGGER.log(Level.WARNING, "{0} did not stop in time", downloader);
             }
         }
         LOGGER.info("Stopping all downloads ... done");
@@ -386,37 +878,37 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
     /**
      * checks if there are more recordings that can be automatically placed for downloading
      */
-    private void enqueueAutomaticDownloads() {
+    private synchronized void enqueueAutomaticDownloads() {
         final Configuration config = application.getConfig();
         final AutodownloadLevel autodownloadLevel = AutodownloadLevel.parse(config.get(ConfigurationKey.AUTODOWNLOAD_LEVEL));
-        boolean inserted = false;
-
-        for (Recording recording : recordingList.getAll()) {
-            boolean addedDownload = false;
-            Set<Quality> levelsToDownload = autodownloadLevel.getQualitiesToDownload(recording);
-            for (Quality quality : levelsToDownload) {
-                if (recording.hasMovieFile(quality)) {
-                    MovieFile movieFile = recording.getMovieFile(quality);
-                    if (!movieFile.isAutoEnqueued()) {
-                        addedDownload = enqueueDownload(recording, quality, false, true);
-                        if (addedDownload) {
-                            LOGGER.log(Level.WARNING, "Autodownloading: enqueued {0} in {1}", new Object[] {recording, quality});
-                            movieFile.setAutoEnqueued(true);
+
+        //all new downloads are added at once
+        downloadList.batch(new Batch<Download>() {
+            @Override
+            public void apply(StorableList<Download> list) {
+                for (Recording recording : recordingList.getSnapshot()) {
+                    boolean addedDownload = false;
+                    Set<Quality> levelsToDownload = autodownloadLevel.getQualitiesToDownload(recording);
+                    for (Quality quality : levelsToDownload) {
+                        if (recording.hasMovieFile(quality)) {
+                            MovieFile movieFile = recording.getMovieFile(quality);
+                            if (!movieFile.isAutoEnqueued()) {
+                                addedDownload = enqueueDownload(recording, quality, false, true);
+                                if (addedDownload) {
+                                    LOGGER.log(Level.WARNING, "Autodownloading: enqueued {0} in {1}", new Object[] {recording, quality});
+                                    movieFile.setAutoEnqueued(true);
+                                    recordingList.save(recording);
+                                }
+                            }
                         }
-                        inserted |= addedDownload;
                     }
-                }
-            }
 
-            if (addedDownload && config.getAsBoolean(ConfigurationKey.DELETE_AFTER_DOWNLOAD)) {
-                recording.markDeleted(true);
+                    if (addedDownload && config.getAsBoolean(ConfigurationKey.DELETE_AFTER_DOWNLOAD)) {
+                        recording.markDeleted(true);
+                    }
+                }
             }
-        }
-
-        if (inserted) {
-            recordingList.save();
-            downloadList.save();
-        }
+        });
     }
 
     /**
@@ -431,17 +923,56 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
         return enqueueDownload(recording, quality, true, false);
     }
 
-    private synchronized void removeRecording(Recording recording) throws ApiInterfaceException, ReportableException {
-        if (!this.removedRecordings.contains(recording)) {
-            this.api.deleteRecording(application.getConfig().get(ConfigurationKey.USERNAME),
-                    application.getConfig().get(ConfigurationKey.PASSWORD), recording);
-            downloadRecordingsList();
+    /**
+     * deletes the given recordings of one account on the server (at most
+     * DELETION_PARALLELISM at the same time) and updates the recordings of
+     * the account once afterwards
+     *
+     * @param accountSync
+     * @param recordings
+     */
+    private void removeRecordings(final AccountSync accountSync, List<Recording> recordings) throws ApiInterfaceException, ReportableException {
+        final Map<Recording, Future<?>> results = new LinkedHashMap<Recording, Future<?>>();
+        for (final Recording recording : recordings) {
+            if (this.removedRecordings.contains(recording)) {
+                LOGGER.log(Level.WARNING, "Tried to remove {0} again", recording);
+                continue;
+            }
+            LOGGER.log(Level.INFO, "Deleting {0}", recording);
+            results.put(recording, deletionExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    accountSync.api.deleteRecording(accountSync.getUsername(), accountSync.getPassword(), recording);
+                    return null;
+                }
+            }));
+        }
+
+        boolean deleted = false;
+        for (Map.Entry<Recording, Future<?>> entry : results.entrySet()) {
+            final Recording recording = entry.getKey();
+            try {
+                entry.getValue().get();
+                this.removedRecordings.add(recording);
+                this.deletionFailures.remove(recording);
+                deleted = true;
+            } catch (InterruptedException e) {
+                //the result is not known - the next synchronization will tell
+            } catch (ExecutionException e) {
+                final int failures = getDeletionFailures(recording) + 1;
+                this.deletionFailures.put(recording, failures);
+                LOGGER.log(Level.WARNING, "Could not delete " + recording + " (attempt " + failures + ")", e.getCause());
+            }
+        }
 
-            this.removedRecordings.add(recording);
-        } else {
-            LOGGER.log(Level.WARNING, "Tried to remove {0} again", recording);
+        if (deleted) {
+            accountSync.downloadRecordingsList();
         }
+    }
 
+    private int getDeletionFailures(Recording recording) {
+        final Integer failures = this.deletionFailures.get(recording);
+        return failures == null ? 0 : failures;
     }
 
     private synchronized boolean enqueueDownload(Recording recording, Quality quality, boolean saveList, boolean autoEnqueued) {
@@ -452,19 +983,14 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
             File file = ToolBox.getTargetFile(application.getWorkingDirectory(), targetFileNamePattern, recording, quality);
 
             final int id = downloadList.getNewPrimaryId();
-            final int maxPrio = downloadList.getMax(new Callback<Integer, Download>() {
-                @Override
-                public Integer call(Download value) {
-                    return value.getPriority();
-                }
-            }, 0);
+            final int maxPrio = downloadsByPriority.getMaxKey(0);
 
             final Download download = new Download(id, maxPrio + 1, recording, quality, file);
             this.downloadList.add(download);
 
             movieFile.setAutoEnqueued(autoEnqueued);
             if (saveList) {
-                recordingList.save();
+                recordingList.save(recording);
                 downloadList.save();
             }
             return true;
@@ -473,14 +999,41 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
     }
 
 
-    private synchronized void downloadRecordingsList() throws ApiInterfaceException, ReportableException {
-        final List<Recording> newRecordings = this.api.downloadRecordingsList(application.getConfig().get(ConfigurationKey.USERNAME),
-                    application.getConfig().get(ConfigurationKey.PASSWORD));
-        recordingList.update(newRecordings, true);
+    /**
+     * merges the recordings of an account into the recordings list. The
+     * recordings of other accounts are left alone. Recordings of other
+     * accounts than the primary one get negative ids, so they never
+     * collide with the ids of the server.
+     *
+     * @param account
+     * @param newRecordings
+     */
+    private synchronized void mergeRecordings(final String account, List<Recording> newRecordings) {
+        if (!account.equals(PRIMARY_ACCOUNT)) {
+            final Map<Integer, Integer> localIds = new HashMap<Integer, Integer>();
+            int minId = 0;
+            for (Recording recording : recordingList.getSnapshot()) {
+                minId = Math.min(minId, recording.getId());
+                if (recording.getAccount().equals(account)) {
+                    localIds.put(recording.getRemoteId(), recording.getId());
+                }
+            }
 
-        LOGGER.log(Level.FINE, "Updated/inserted {0} recordings", newRecordings.size());
-        this.setControllerState(ControllerState.CONNECTED);
+            for (Recording recording : newRecordings) {
+                final Integer localId = localIds.get(recording.getRemoteId());
+                recording.setId(localId != null ? localId : --minId);
+            }
+        }
 
+        for (Recording recording : newRecordings) {
+            recording.setAccount(account);
+        }
+        recordingList.update(newRecordings, new Callback<Boolean, Recording>() {
+            @Override
+            public Boolean call(Recording value) {
+                return value.getAccount().equals(account);
+            }
+        });
     }
 
     @Override
@@ -492,11 +1045,23 @@ public class DownloadController extends Thread implements Updateable<DownloadCon
             case DOWNLOAD_PAUSED:
             case MAX_DOWNLOAD_SPEED:
             case MAX_SIMULTANEOUS_DOWNLOADS:
+            case MAX_CONNECTIONS:
             case QUALITY_LEVELS_TO_DOWNLOAD:
             case RECORDLIST_UPDATE_TIME:
-                this.lastRecordingsUpdate = new Date().getTime() - (application.getConfig().getAsInt(ConfigurationKey.RECORDLIST_UPDATE_TIME) + 5);
+            case RECORDLIST_MAX_UPDATE_TIME:
+                this.connectionBudget.reallocate();
+                synchronized (accountSyncs) {
+                    for (AccountSync accountSync : accountSyncs.values()) {
+                        accountSync.requestUpdate();
+                    }
+                }
                 this.interrupt();
                 break;
+            case ACCOUNTS:
+                if (!shutdown && this.isAlive()) {
+                    updateAccounts();
+                }
+                break;
             default:
         }
     }
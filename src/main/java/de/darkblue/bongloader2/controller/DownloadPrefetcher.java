@@ -0,0 +1,199 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.controller;
+
+import de.darkblue.bongloader2.Configuration;
+import de.darkblue.bongloader2.ConfigurationKey;
+import de.darkblue.bongloader2.controller.ServerAddressPool.ServerAddress;
+import de.darkblue.bongloader2.model.Download;
+import de.darkblue.bongloader2.utils.ToolBox;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Prepares downloads that are next in the queue: resolves their file size
+ * and range support in the background and opens a connection to their
+ * server shortly before they are started, so the jvm can hand that (kept
+ * alive) connection to the first part downloader.
+ *
+ * @author Florian Frankenberger
+ */
+public class DownloadPrefetcher {
+
+    private static final Logger LOGGER = Logger.getLogger(DownloadPrefetcher.class.getCanonicalName());
+
+    /**
+     * idle keep alive connections are closed by the jvm after 5 seconds so
+     * we need to warm up again before that
+     */
+    private static final long PREWARM_INTERVAL = 4000;
+
+    private final Configuration config;
+    private final ServerAddressPool serverAddressPool;
+
+    private final Set<Download> inProgress = Collections.synchronizedSet(new HashSet<Download>());
+    private final Map<Download, Long> lastPrewarms = new ConcurrentHashMap<Download, Long>();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "download prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    public DownloadPrefetcher(Configuration config, ServerAddressPool serverAddressPool) {
+        this.config = config;
+        this.serverAddressPool = serverAddressPool;
+    }
+
+    /**
+     * resolves the file size of the given download in the background if it
+     * is not known yet.
+     *
+     * @param download
+     */
+    public void resolveSize(Download download) {
+        if (download.getTotalBytes() <= 0) {
+            submit(download, false);
+        }
+    }
+
+    /**
+     * resolves the file size (if needed) and opens a connection to the server
+     * of the given download in the background.
+     *
+     * @param download
+     */
+    public void prewarm(Download download) {
+        final Long lastPrewarm = this.lastPrewarms.get(download);
+        if (lastPrewarm == null || System.currentTimeMillis() - lastPrewarm > PREWARM_INTERVAL) {
+            if (submit(download, true)) {
+                this.lastPrewarms.put(download, System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * should be called once the download was started
+     *
+     * @param download
+     */
+    public void forget(Download download) {
+        this.lastPrewarms.remove(download);
+    }
+
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    private boolean submit(final Download download, final boolean prewarm) {
+        if (!this.inProgress.add(download)) {
+            return false;
+        }
+
+        this.executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    probe(download, prewarm);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not get file size for {0}", download);
+                } finally {
+                    inProgress.remove(download);
+                }
+            }
+
+        });
+        return true;
+    }
+
+    /**
+     * requests the first byte of the download. A partial response tells us
+     * the size and that ranges are supported. Reading the response completely
+     * leaves the connection in the jvm's keep alive cache.
+     */
+    private void probe(Download download, boolean prewarm) throws IOException {
+        final URL url = download.getMovieFile().getDownloadUrl();
+        final ServerAddress serverAddress = serverAddressPool.select(url);
+
+        long size = -1;
+        HttpURLConnection connection = null;
+        boolean keepAlive = false;
+        try {
+            connection = serverAddress.openConnection(url);
+            connection.setRequestProperty("User-Agent", "BongLoader2 " + config.get(ConfigurationKey.VERSION));
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(10000);
+            connection.setRequestProperty("Range", "bytes=0-0");
+
+            final int responseCode = connection.getResponseCode();
+            serverAddress.checkResponseCode(responseCode);
+            if (responseCode == 206) {
+                final String contentRange = connection.getHeaderField("Content-Range");
+                if (contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+                    try {
+                        size = Long.valueOf(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+                    } catch (NumberFormatException e) {
+                        //ignore
+                    }
+                }
+
+                final InputStream in = connection.getInputStream();
+                try {
+                    while (in.read() > -1) {
+                        //consume
+                    }
+                } finally {
+                    in.close();
+                }
+                keepAlive = true;
+            } else {
+                LOGGER.log(Level.FINE, "{0} does not support ranges (response code {1})", new Object[] {url, responseCode});
+            }
+        } finally {
+            if (connection != null && !keepAlive) {
+                connection.disconnect();
+            }
+        }
+
+        if (download.getTotalBytes() <= 0) {
+            download.setTotalBytes(size > 0 ? size : ToolBox.getFileSize(config, url));
+        }
+
+        if (prewarm) {
+            LOGGER.log(Level.FINE, "Prewarmed {0} ({1})", new Object[] {download, serverAddress});
+        }
+    }
+
+}
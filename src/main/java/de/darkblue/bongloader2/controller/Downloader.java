@@ -18,6 +18,7 @@ package de.darkblue.bongloader2.controller;
 
 import de.darkblue.bongloader2.Configuration;
 import de.darkblue.bongloader2.ConfigurationKey;
+import de.darkblue.bongloader2.controller.ServerAddressPool.ServerAddress;
 import de.darkblue.bongloader2.model.Download;
 import de.darkblue.bongloader2.model.Download.Part;
 import de.darkblue.bongloader2.utils.Utils;
@@ -28,7 +29,15 @@ import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,8 +48,23 @@ import java.util.logging.Logger;
 public class Downloader extends Thread {
 
     private static final Logger LOGGER = Logger.getLogger(DownloadController.class.getCanonicalName());
+
+    /**
+     * parts are never split into pieces smaller than this
+     */
+    private static final long MIN_PART_LENGTH = 2 * 1024 * 1024;
+    private static final long BALANCE_INTERVAL = 1000;
+
+    /**
+     * maximum amount of parts that are compared with the server at the same time
+     */
+    private static final int MAX_PARALLEL_VERIFICATIONS = 8;
+
     private final Download download;
     private final CruiseController cruiseController;
+    private final ConnectionBudget connectionBudget;
+    private final ServerAddressPool serverAddressPool;
+    private final PartVerifier partVerifier;
     private RandomAccessFile randomAccessFile;
 
     private volatile boolean done = false;
@@ -49,12 +73,14 @@ public class Downloader extends Thread {
     private volatile boolean shutdown = false;
     private final Configuration config;
 
-    private final List<PartDownloader> partDownloaders = new ArrayList<PartDownloader>();
+    private final List<PartDownloader> partDownloaders = new CopyOnWriteArrayList<PartDownloader>();
 
     private class PartDownloader extends Thread {
         private final Part part;
         private volatile boolean running = false;
         private volatile boolean finished = false;
+        private volatile boolean stopped = false;
+        private volatile HttpURLConnection openConnection = null;
 
         public PartDownloader(Part part) {
             this.part = part;
@@ -70,14 +96,17 @@ public class Downloader extends Thread {
 
         @Override
         public void run() {
-            while (!shutdown && part.getLoaded() < part.getLength()) {
+            while (!shutdown && !stopped && part.getLoaded() < part.getLength()) {
                 final URL downloadUrl = download.getMovieFile().getDownloadUrl();
+                final ServerAddress serverAddress = serverAddressPool.select(downloadUrl);
                 //try to open a connection
                 try {
                     HttpURLConnection connection = null;
                     boolean registeredDownloadWithCruiseController = false;
+                    serverAddress.connectionOpened();
                     try {
-                        connection = (HttpURLConnection) downloadUrl.openConnection();
+                        connection = serverAddress.openConnection(downloadUrl);
+                        this.openConnection = connection;
                         connection.setRequestProperty("User-Agent", "BongLoader2 " + config.get(ConfigurationKey.VERSION));
                         connection.setConnectTimeout(10000);
                         connection.setReadTimeout(10000);
@@ -87,6 +116,7 @@ public class Downloader extends Thread {
                         connection.setRequestProperty("Range", "bytes=" + fromBytes + "-" + toBytes);
 
                         connection.connect();
+                        serverAddress.checkResponseCode(connection.getResponseCode());
                         if (connection.getResponseCode() == 206) {
                             this.running = true;
 
@@ -124,11 +154,19 @@ public class Downloader extends Thread {
                                 if (sleepTime == 0) {
                                     read = in.read(buffer);
                                     if (read > 0) {
-                                        synchronized (randomAccessFile) {
-                                            randomAccessFile.seek(part.getOffset() + part.getLoaded());
-                                            randomAccessFile.write(buffer, 0, read);
+                                        //the part might have been split in the meantime so we
+                                        //never write beyond its (new) end
+                                        synchronized (part) {
+                                            final long loaded = part.getLoaded();
+                                            final int toWrite = (int) Math.min(read, part.getLength() - loaded);
+                                            if (toWrite > 0) {
+                                                synchronized (randomAccessFile) {
+                                                    randomAccessFile.seek(part.getOffset() + loaded);
+                                                    randomAccessFile.write(buffer, 0, toWrite);
+                                                }
+                                                part.addLoaded(buffer, toWrite);
+                                            }
                                         }
-                                        part.setLoaded(part.getLoaded() + read);
                                         readInTime += read;
                                         readInBlock += read;
                                     }
@@ -171,14 +209,17 @@ public class Downloader extends Thread {
                                     final float currentSpeed = readInTime / ((float) timePassed / 1000f);
                                     time = System.currentTimeMillis();
                                     cruiseController.addSpeed(currentSpeed);
+                                    serverAddress.addMeasurement(readInTime, timePassed);
                                     readInTime = 0;
                                 }
 
-                            } while (part.getLoaded() < part.getLength() && read > -1 && !shutdown);
+                            } while (part.getLoaded() < part.getLength() && read > -1 && !shutdown && !stopped);
                         } else {
                             throw new IOException("Probelm retrieving a part - response code was: " + connection.getResponseCode());
                         }
                     } finally {
+                        this.openConnection = null;
+                        serverAddress.connectionClosed();
                         this.running = false;
                         if (registeredDownloadWithCruiseController) {
                             cruiseController.removeDownload();
@@ -189,7 +230,12 @@ public class Downloader extends Thread {
                     }
 
                 } catch (IOException e) {
-                    LOGGER.log(Level.WARNING, this.toString() + " could not connect to " + downloadUrl, e);
+                    if (shutdown || stopped) {
+                        //the connection was aborted by us
+                        break;
+                    }
+                    LOGGER.log(Level.WARNING, this.toString() + " could not connect to " + downloadUrl + " (" + serverAddress + ")", e);
+                    serverAddress.addError();
                     download.setDownloadProblems(true);
                     try {
                         Thread.sleep(5000);
@@ -203,6 +249,34 @@ public class Downloader extends Thread {
             LOGGER.log(Level.FINE, "{0} stopped loading part {1}", new Object[] {this.toString(), part});
         }
 
+        /**
+         * stops loading this part (without the whole download being
+         * shut down), so the connection can be used by another download
+         */
+        public void stopLoading() {
+            this.stopped = true;
+        }
+
+        /**
+         * closes the connection (which also ends a blocking read) and wakes
+         * this downloader up if it is waiting for a retry
+         */
+        public void abort() {
+            final HttpURLConnection connection = this.openConnection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+            this.interrupt();
+        }
+
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        public Part getPart() {
+            return part;
+        }
+
         @Override
         public String toString() {
             return Downloader.this.toString() + " > " + "PartDownloader{partoffset=" + this.part.getOffset() + "}";
@@ -210,68 +284,263 @@ public class Downloader extends Thread {
 
     }
 
-    public Downloader(CruiseController cruiseController, Download download, Configuration config) {
+    public Downloader(CruiseController cruiseController, ConnectionBudget connectionBudget,
+            ServerAddressPool serverAddressPool, Download download, Configuration config) {
         this.download = download;
         this.cruiseController = cruiseController;
+        this.connectionBudget = connectionBudget;
+        this.serverAddressPool = serverAddressPool;
+        this.partVerifier = new PartVerifier(config, serverAddressPool);
         this.config = config;
     }
 
     @Override
     public void run() {
+        connectionBudget.register(this);
         try {
-            if (!this.download.startedDownloading() || !this.download.getDownloadFile().exists()) {
-                this.initDownload();
-            }
             try {
-                randomAccessFile = new RandomAccessFile(this.download.getDownloadFile(), "rw");
-
-                //enqueue all parts
-                for (Part part : this.download.getParts()) {
-                    final PartDownloader partDownloader = new PartDownloader(part);
-                    partDownloaders.add(partDownloader);
+                final boolean resume = this.download.startedDownloading() && this.download.getDownloadFile().exists();
+                if (!resume) {
+                    this.initDownload();
                 }
+                try {
+                    randomAccessFile = new RandomAccessFile(this.download.getDownloadFile(), "rw");
 
-                //start all parts
-                for (PartDownloader downloader : this.partDownloaders) {
-                    downloader.start();
+                    if (resume) {
+                        validateResume();
+                    }
+
+                    //keep the amount of connections in line with our share of the
+                    //connection budget until all parts are loaded
+                    while (!shutdown && !isComplete()) {
+                        balanceConnections();
+                        try {
+                            connectionBudget.awaitReallocation(BALANCE_INTERVAL);
+                        } catch (InterruptedException e) {
+                            //ignore
+                        }
+                    }
+
+                    //and now wait for them to finish
+                    for (PartDownloader partDownloader : partDownloaders) {
+                        try {
+                            partDownloader.join();
+                        } catch (InterruptedException e) {
+                            //ignore
+                        }
+                    }
+                } finally {
+                    if (randomAccessFile != null) {
+                        try {
+                            //make sure the loaded bytes are on disk before the progress is saved
+                            randomAccessFile.getFD().sync();
+                        } finally {
+                            randomAccessFile.close();
+                        }
+                    }
                 }
+            } catch (Exception e) {
+                download.setDownloadProblems(true);
+                LOGGER.log(Level.WARNING, "Problem while downloading file " + download, e);
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                this.error = e;
+            }
 
-                //and now wait for them to finish
-                for (PartDownloader partDownloader : partDownloaders) {
-                    try {
-                        partDownloader.join();
-                    } catch (InterruptedException e) {
-                        //ignore
+            //if the download stopped before it is finished we assume some error / or
+            //a controlled shutdown ...
+            if (this.error == null
+                    && this.download.getDownloadedBytes() < this.download.getTotalBytes()) {
+                this.error = new IllegalStateException("Shutdown before file was finished.");
+            }
+
+            this.done = true;
+        } finally {
+            //the connections must be given back in any case
+            connectionBudget.unregister(this);
+        }
+    }
+
+    /**
+     * makes sure we only continue from data that is really there: the
+     * progress of every part is cut down to its checksummed bytes (or to
+     * what is contained in the download file if the part has no checksum).
+     * The checksummed bytes are trusted without reading them again - that
+     * is left to the full integrity scan, so a restart doesn't have to read
+     * the whole file. Optionally the last bytes of every part are compared
+     * with the server - all parts at the same time, so a slow server delays
+     * the start only once. A part that differs is loaded again.
+     */
+    private void validateResume() throws IOException {
+        final boolean verifyTails = config.getAsBoolean(ConfigurationKey.VERIFY_ON_RESUME, true);
+        final URL downloadUrl = download.getMovieFile().getDownloadUrl();
+
+        final List<Part> loadedParts = new ArrayList<Part>();
+        for (Part part : this.download.getParts()) {
+            final long available = partVerifier.getAvailable(randomAccessFile, part);
+            if (available < part.getLoaded()) {
+                LOGGER.log(Level.WARNING, "{0}: only {1} bytes of {2} can be trusted - continuing from there",
+                        new Object[] {this, available, part});
+                part.setLoaded(available);
+            }
+            if (part.getLoaded() > 0) {
+                loadedParts.add(part);
+            }
+        }
+
+        if (verifyTails && !shutdown && !loadedParts.isEmpty()) {
+            verifyTails(loadedParts, downloadUrl);
+        }
+    }
+
+    /**
+     * compares the last bytes of all given parts with the server in parallel
+     */
+    private void verifyTails(List<Part> parts, final URL downloadUrl) {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parts.size(), MAX_PARALLEL_VERIFICATIONS));
+        try {
+            final Map<Part, Future<Boolean>> results = new LinkedHashMap<Part, Future<Boolean>>();
+            for (final Part part : parts) {
+                results.put(part, executor.submit(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws Exception {
+                        return partVerifier.verifyTail(randomAccessFile, part, downloadUrl);
+                    }
+
+                }));
+            }
+
+            for (Map.Entry<Part, Future<Boolean>> result : results.entrySet()) {
+                final Part part = result.getKey();
+                try {
+                    final boolean equal = result.getValue().get();
+                    if (shutdown) {
+                        //the progress may already be checkpointed
+                        return;
+                    }
+                    if (!equal) {
+                        LOGGER.log(Level.WARNING, "{0}: {1} differs from the server - loading it again",
+                                new Object[] {this, part});
+                        part.setLoaded(0);
                     }
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.FINE, this + " could not verify " + part, e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
-            } finally {
-                if (randomAccessFile != null) {
-                    randomAccessFile.close();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean isComplete() {
+        for (Part part : this.download.getParts()) {
+            if (part.getLoaded() < part.getLength()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * starts or stops part downloaders so that this download uses exactly
+     * the amount of connections it was granted by the connection budget. If
+     * there are not enough unloaded parts, the largest one is split.
+     */
+    private void balanceConnections() {
+        final List<PartDownloader> activeDownloaders = new ArrayList<PartDownloader>();
+        for (PartDownloader partDownloader : this.partDownloaders) {
+            if (!partDownloader.isAlive() && partDownloader.finished) {
+                this.partDownloaders.remove(partDownloader);
+            } else if (!partDownloader.isStopped()) {
+                activeDownloaders.add(partDownloader);
+            }
+        }
+
+        final int allowance = connectionBudget.getAllowance(this);
+
+        //give back the connections of the parts that are closest to be finished
+        while (activeDownloaders.size() > allowance) {
+            PartDownloader leastRemaining = activeDownloaders.get(0);
+            for (PartDownloader partDownloader : activeDownloaders) {
+                if (partDownloader.getPart().getRemaining() < leastRemaining.getPart().getRemaining()) {
+                    leastRemaining = partDownloader;
                 }
             }
-        } catch (Exception e) {
-            download.setDownloadProblems(true);
-            LOGGER.log(Level.WARNING, "Problem while downloading file " + download, e);
-            try {
-                Thread.sleep(5000);
-            } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
+            leastRemaining.stopLoading();
+            activeDownloaders.remove(leastRemaining);
+            LOGGER.log(Level.FINE, "{0} gave back the connection of {1}", new Object[] {this, leastRemaining});
+        }
+
+        for (int i = activeDownloaders.size(); i < allowance; ++i) {
+            Part part = getIdlePart();
+            if (part == null) {
+                part = splitLargestPart();
+            }
+            if (part == null) {
+                break; //nothing left to distribute
             }
-            this.error = e;
+            final PartDownloader partDownloader = new PartDownloader(part);
+            this.partDownloaders.add(partDownloader);
+            partDownloader.start();
         }
+    }
 
-        //if the download stopped before it is finished we assume some error / or
-        //a controlled shutdown ...
-        if (this.error == null
-                && this.download.getDownloadedBytes() < this.download.getTotalBytes()) {
-            this.error = new IllegalStateException("Shutdown before file was finished.");
+    /**
+     * returns an unfinished part that is currently not loaded by any
+     * part downloader or null if there is none.
+     *
+     * @return
+     */
+    private Part getIdlePart() {
+        for (Part part : this.download.getParts()) {
+            if (part.getLoaded() < part.getLength() && !isLoading(part)) {
+                return part;
+            }
         }
+        return null;
+    }
 
-        this.done = true;
+    private boolean isLoading(Part part) {
+        for (PartDownloader partDownloader : this.partDownloaders) {
+            if (partDownloader.getPart() == part && partDownloader.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Part splitLargestPart() {
+        Part largestPart = null;
+        for (Part part : this.download.getParts()) {
+            if (largestPart == null || part.getRemaining() > largestPart.getRemaining()) {
+                largestPart = part;
+            }
+        }
+
+        if (largestPart != null) {
+            final Part newPart = largestPart.split(MIN_PART_LENGTH);
+            if (newPart != null) {
+                this.download.addPart(newPart);
+                LOGGER.log(Level.FINE, "{0} split {1} into a new {2}", new Object[] {this, largestPart, newPart});
+                return newPart;
+            }
+        }
+        return null;
     }
 
     public void shutdown() {
         this.shutdown = true;
+        for (PartDownloader partDownloader : this.partDownloaders) {
+            partDownloader.abort();
+        }
+        this.interrupt();
     }
 
     /**
@@ -292,10 +561,9 @@ public class Downloader extends Thread {
     }
 
     private void initDownload() throws IOException {
-        final int partsAmount = config.getAsInt(ConfigurationKey.DOWNLOAD_PARTS);
-
         //1. retrieve total file size
         final long totalFileSize = download.getTotalBytes();
+        final int partsAmount = (int) Math.max(1, Math.min(connectionBudget.getAllowance(this), totalFileSize / MIN_PART_LENGTH));
         final long partSize = totalFileSize / partsAmount;
 
         //2. split filesize in parts
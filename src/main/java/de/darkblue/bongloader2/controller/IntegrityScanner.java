@@ -0,0 +1,254 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.controller;
+
+import de.darkblue.bongloader2.model.Download;
+import de.darkblue.bongloader2.model.Download.Part;
+import de.darkblue.bongloader2.model.Recording.MovieFile;
+import de.darkblue.bongloader2.model.data.StorableList;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reconciles the download list with the files on disk (e.g. after a crash
+ * or after files have been removed by hand). All downloads are checked in
+ * parallel, the found repairs are then applied at once and the list is
+ * saved a single time.
+ *
+ * @author Florian Frankenberger
+ */
+public class IntegrityScanner {
+
+    private static final Logger LOGGER = Logger.getLogger(IntegrityScanner.class.getCanonicalName());
+
+    private final StorableList<Download> downloadList;
+    private final PartVerifier partVerifier;
+    private final boolean verifyFinishedDownloads;
+
+    /**
+     * what has to be done to a download to make it consistent again
+     */
+    private static class Repair {
+        private final Download download;
+        private final List<String> problems = new ArrayList<String>();
+        private final Map<Part, Long> partsLoaded = new HashMap<Part, Long>();
+        private boolean clearParts = false;
+        private boolean restart = false;
+        private File renameFrom = null;
+        private File renameTo = null;
+
+        public Repair(Download download) {
+            this.download = download;
+        }
+
+        public boolean isNeeded() {
+            return clearParts || restart || renameFrom != null || !partsLoaded.isEmpty();
+        }
+    }
+
+    /**
+     * @param downloadList
+     * @param partVerifier
+     * @param verifyFinishedDownloads if true the files of finished downloads are
+     *                                read completely to compare their checksum
+     */
+    public IntegrityScanner(StorableList<Download> downloadList, PartVerifier partVerifier, boolean verifyFinishedDownloads) {
+        this.downloadList = downloadList;
+        this.partVerifier = partVerifier;
+        this.verifyFinishedDownloads = verifyFinishedDownloads;
+    }
+
+    /**
+     * scans all downloads and repairs them
+     *
+     * @return the amount of repaired downloads
+     */
+    public int scan() {
+        final List<Download> downloads = downloadList.getSnapshot();
+        LOGGER.log(Level.INFO, "Scanning {0} downloads", downloads.size());
+        final long startTime = System.currentTimeMillis();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+        final List<Future<Repair>> results = new ArrayList<Future<Repair>>();
+        try {
+            for (final Download download : downloads) {
+                results.add(executor.submit(new Callable<Repair>() {
+
+                    @Override
+                    public Repair call() throws Exception {
+                        return check(download);
+                    }
+
+                }));
+            }
+
+            final List<Repair> repairs = new ArrayList<Repair>();
+            for (Future<Repair> result : results) {
+                try {
+                    final Repair repair = result.get();
+                    for (String problem : repair.problems) {
+                        LOGGER.log(Level.WARNING, "{0}: {1}", new Object[] {repair.download, problem});
+                    }
+                    if (repair.isNeeded()) {
+                        repairs.add(repair);
+                    }
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.WARNING, "Could not check download", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+
+            for (Repair repair : repairs) {
+                apply(repair);
+            }
+            if (!repairs.isEmpty()) {
+                downloadList.flush();
+            }
+
+            LOGGER.log(Level.INFO, "Scan finished after {0} ms: repaired {1} of {2} downloads",
+                    new Object[] {System.currentTimeMillis() - startTime, repairs.size(), downloads.size()});
+            return repairs.size();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Repair check(Download download) throws IOException {
+        final Repair repair = new Repair(download);
+        final File downloadFile = download.getDownloadFile();
+        final File targetFile = download.getTargetFile();
+
+        if (download.isDownloaded()) {
+            if (!targetFile.exists()) {
+                if (downloadFile.exists() && downloadFile.length() == download.getTotalBytes()) {
+                    repair.problems.add("was not renamed");
+                    repair.renameFrom = downloadFile;
+                    repair.renameTo = targetFile;
+                } else {
+                    repair.problems.add("file " + targetFile + " is missing");
+                }
+            } else if (targetFile.length() != download.getTotalBytes()) {
+                repair.problems.add("file " + targetFile + " has " + targetFile.length() + " instead of "
+                        + download.getTotalBytes() + " bytes");
+                restart(repair);
+            } else if (verifyFinishedDownloads && download.getChecksum() != null
+                    && !partVerifier.verifyChecksum(targetFile, download.getChecksum())) {
+                repair.problems.add("checksum of file " + targetFile + " does not match");
+                restart(repair);
+            }
+            return repair;
+        }
+
+        if (!download.startedDownloading()) {
+            return repair;
+        }
+
+        if (!downloadFile.exists()) {
+            repair.problems.add("download file " + downloadFile + " is missing");
+            repair.clearParts = true;
+            return repair;
+        }
+
+        final MovieFile movieFile = download.getRecording() == null ? null : download.getMovieFile();
+        final RandomAccessFile file = new RandomAccessFile(downloadFile, "r");
+        try {
+            for (Part part : download.getParts()) {
+                //the download file must at least contain all trusted loaded bytes
+                final long available = partVerifier.getAvailable(file, part);
+                if (available < part.getLoaded()) {
+                    repair.problems.add(part + " has only " + available + " trusted bytes on disk");
+                    repair.partsLoaded.put(part, available);
+                    continue;
+                }
+
+                if (!partVerifier.verifyChecksum(file, part)) {
+                    repair.problems.add(part + " does not match its checksum");
+                    repair.partsLoaded.put(part, 0L);
+                    continue;
+                }
+
+                if (movieFile != null && movieFile.getDownloadUrl() != null) {
+                    try {
+                        if (!partVerifier.verifyTail(file, part, movieFile.getDownloadUrl())) {
+                            repair.problems.add(part + " differs from the server");
+                            repair.partsLoaded.put(part, 0L);
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Could not verify " + part + " with the server", e);
+                    }
+                }
+            }
+        } finally {
+            file.close();
+        }
+        return repair;
+    }
+
+    /**
+     * a finished file is broken: we keep it under a different name and
+     * download it again
+     */
+    private void restart(Repair repair) {
+        final File targetFile = repair.download.getTargetFile();
+        repair.restart = true;
+        repair.clearParts = true;
+        repair.renameFrom = targetFile;
+        repair.renameTo = new File(targetFile.getParentFile(), targetFile.getName() + ".corrupt");
+    }
+
+    private void apply(Repair repair) {
+        final Download download = repair.download;
+        if (repair.renameFrom != null) {
+            if (repair.renameFrom.renameTo(repair.renameTo)) {
+                LOGGER.log(Level.INFO, "Renamed {0} to {1}", new Object[] {repair.renameFrom, repair.renameTo});
+            } else {
+                LOGGER.log(Level.WARNING, "Could not rename {0} to {1}", new Object[] {repair.renameFrom, repair.renameTo});
+                return;
+            }
+        }
+
+        if (repair.restart) {
+            download.setDownloaded(false);
+        }
+
+        if (repair.clearParts) {
+            download.clearParts();
+        } else {
+            for (Map.Entry<Part, Long> entry : repair.partsLoaded.entrySet()) {
+                entry.getKey().setLoaded(entry.getValue());
+            }
+        }
+        //the updates of the parts are throttled by the download
+        downloadList.save(download);
+        LOGGER.log(Level.INFO, "Repaired {0}", download);
+    }
+
+}
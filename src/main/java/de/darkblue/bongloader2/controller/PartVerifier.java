@@ -0,0 +1,207 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.controller;
+
+import de.darkblue.bongloader2.Configuration;
+import de.darkblue.bongloader2.ConfigurationKey;
+import de.darkblue.bongloader2.controller.ServerAddressPool.ServerAddress;
+import de.darkblue.bongloader2.model.Download.Part;
+import de.darkblue.bongloader2.utils.Crc32;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Checks already loaded data of a download against the stored
+ * checksums and against the server.
+ *
+ * @author Florian Frankenberger
+ */
+public class PartVerifier {
+
+    /**
+     * amount of bytes at the end of a part that are compared with the server
+     */
+    private static final int TAIL_LENGTH = 4096;
+
+    private final Configuration config;
+    private final ServerAddressPool serverAddressPool;
+
+    public PartVerifier(Configuration config, ServerAddressPool serverAddressPool) {
+        this.config = config;
+        this.serverAddressPool = serverAddressPool;
+    }
+
+    /**
+     * returns how many of the loaded bytes of the part can be trusted:
+     * the bytes covered by its checksum if the part has one and they are
+     * contained in the download file - otherwise the loaded bytes that are
+     * contained in the download file. Bytes covered by the checksum are
+     * only read again by verifyChecksum().
+     *
+     * @param file the download file
+     * @param part
+     * @return
+     * @throws IOException
+     */
+    public long getAvailable(RandomAccessFile file, Part part) throws IOException {
+        final long onDisk = Math.max(0, Math.min(part.getLoaded(), file.length() - part.getOffset()));
+        final Crc32 checksum = part.getChecksum();
+        if (checksum != null && checksum.getLength() > 0 && checksum.getLength() <= onDisk) {
+            return checksum.getLength();
+        }
+        return onDisk;
+    }
+
+    /**
+     * checks the bytes of the given part that are covered by its checksum.
+     * Returns true if they match or if the part has no checksum.
+     *
+     * @param file the download file
+     * @param part
+     * @return
+     * @throws IOException
+     */
+    public boolean verifyChecksum(RandomAccessFile file, Part part) throws IOException {
+        final Crc32 checksum = part.getChecksum();
+        if (checksum == null || checksum.getLength() == 0) {
+            return true;
+        }
+        if (part.getOffset() + checksum.getLength() > file.length()) {
+            return false;
+        }
+
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[64 * 1024];
+        long position = part.getOffset();
+        long toRead = checksum.getLength();
+        while (toRead > 0) {
+            final int count = (int) Math.min(buffer.length, toRead);
+            synchronized (file) {
+                file.seek(position);
+                file.readFully(buffer, 0, count);
+            }
+            crc.update(buffer, 0, count);
+            position += count;
+            toRead -= count;
+        }
+        return crc.getValue() == checksum.getValue();
+    }
+
+    /**
+     * checks the whole file against the given checksum
+     *
+     * @param file
+     * @param checksum
+     * @return
+     * @throws IOException
+     */
+    public boolean verifyChecksum(File file, Crc32 checksum) throws IOException {
+        if (file.length() != checksum.getLength()) {
+            return false;
+        }
+
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[64 * 1024];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) > -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue() == checksum.getValue();
+    }
+
+    /**
+     * compares the last loaded bytes of the part with the same range
+     * requested from the server. Returns true if they are equal or if
+     * nothing of the part has been loaded yet.
+     *
+     * @param file the download file
+     * @param part
+     * @param url
+     * @return
+     * @throws IOException if the server could not be asked
+     */
+    public boolean verifyTail(RandomAccessFile file, Part part, URL url) throws IOException {
+        final long loaded = part.getLoaded();
+        if (loaded <= 0) {
+            return true;
+        }
+
+        final int length = (int) Math.min(TAIL_LENGTH, loaded);
+        final long start = part.getOffset() + loaded - length;
+        if (start + length > file.length()) {
+            return false;
+        }
+
+        final byte[] local = new byte[length];
+        synchronized (file) {
+            file.seek(start);
+            file.readFully(local);
+        }
+
+        final byte[] remote = new byte[length];
+        final ServerAddress serverAddress = serverAddressPool.select(url);
+        HttpURLConnection connection = null;
+        serverAddress.connectionOpened();
+        try {
+            connection = serverAddress.openConnection(url);
+            connection.setRequestProperty("User-Agent", "BongLoader2 " + config.get(ConfigurationKey.VERSION));
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(10000);
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (start + length - 1));
+
+            final int responseCode = connection.getResponseCode();
+            serverAddress.checkResponseCode(responseCode);
+            if (responseCode != 206) {
+                throw new IOException("Could not verify part - response code was: " + responseCode);
+            }
+
+            final InputStream in = connection.getInputStream();
+            try {
+                int position = 0;
+                while (position < length) {
+                    final int read = in.read(remote, position, length - position);
+                    if (read < 0) {
+                        throw new IOException("Could not verify part - response was too short");
+                    }
+                    position += read;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            serverAddress.addError();
+            throw e;
+        } finally {
+            serverAddress.connectionClosed();
+        }
+
+        return Arrays.equals(local, remote);
+    }
+
+}
@@ -0,0 +1,93 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.controller;
+
+import de.darkblue.bongloader2.Configuration;
+import de.darkblue.bongloader2.ConfigurationKey;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Decides when the recordings list is polled next. Shortly after a
+ * recording should have finished the list is polled every few seconds,
+ * so the recording can be downloaded as soon as possible. When nothing
+ * is expected the interval doubles with every poll that brought no
+ * changes, up to the configured maximum.
+ *
+ * @author Florian Frankenberger
+ */
+class PollScheduler {
+
+    /**
+     * in ms: the interval while a recording is expected to show up
+     */
+    private static final long EXPECTED_INTERVAL = 5000;
+
+    /**
+     * in ms: how long after its end a recording is expected to show up
+     */
+    private static final long EXPECTED_WINDOW = 15 * 60 * 1000;
+
+    private final Configuration config;
+    private long interval = 0L;
+
+    public PollScheduler(Configuration config) {
+        this.config = config;
+    }
+
+    /**
+     * starts again with the shortest regular interval
+     */
+    public synchronized void reset() {
+        this.interval = 0L;
+    }
+
+    /**
+     * calculates the delay until the next poll
+     *
+     * @param changed true if the last poll changed the recordings list
+     * @param expectedRecordings the times recordings that are not recorded yet
+     *                           are expected to be finished
+     * @return the delay in ms
+     */
+    public synchronized long getNextDelay(boolean changed, List<Date> expectedRecordings) {
+        final long minInterval = config.getAsLong(ConfigurationKey.RECORDLIST_UPDATE_TIME);
+        final long maxInterval = Math.max(minInterval, config.getAsLong(ConfigurationKey.RECORDLIST_MAX_UPDATE_TIME, minInterval));
+
+        if (changed || interval < minInterval) {
+            interval = minInterval;
+        } else {
+            interval = Math.min(maxInterval, interval * 2);
+        }
+
+        final long now = System.currentTimeMillis();
+        long delay = interval;
+        for (Date expectedRecording : expectedRecordings) {
+            final long end = expectedRecording.getTime();
+            if (end <= now && now - end < EXPECTED_WINDOW) {
+                //should be there any moment now
+                interval = minInterval;
+                return Math.min(delay, EXPECTED_INTERVAL);
+            } else if (end > now) {
+                //wake up when it ends
+                delay = Math.min(delay, end - now);
+            }
+        }
+        return delay;
+    }
+
+}
@@ -0,0 +1,303 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.controller;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves all addresses (A and AAAA records) of a download host and
+ * spreads the part connections across them. For every address the
+ * throughput and the errors are tracked so that new connections are
+ * steered away from slow or failing servers.
+ * <p>
+ * To try this locally, map a host name to several loopback addresses
+ * (e.g. 127.0.0.1, 127.0.0.2, ...) in the hosts file.
+ *
+ * @author Florian Frankenberger
+ */
+public class ServerAddressPool {
+
+    private static final Logger LOGGER = Logger.getLogger(ServerAddressPool.class.getCanonicalName());
+
+    private static final long RESOLVE_INTERVAL = 5 * 60 * 1000;
+    private static final float SPEED_SMOOTHING = 0.2f;
+
+    /**
+     * in bytes/s: the speed expected from an address that was not measured
+     * yet, if no address of the host was measured either
+     */
+    private static final float DEFAULT_SPEED = 512f * 1024f;
+
+    /**
+     * in ms: the time after which half of the errors of an address are forgotten
+     */
+    private static final long ERROR_HALF_LIFE = 60 * 1000;
+
+    /**
+     * an address that was not measured yet and has more errors than this
+     * is only used if there is no other address
+     */
+    private static final float MAX_UNMEASURED_ERRORS = 0.1f;
+
+    /**
+     * without this property the jvm silently drops our host header
+     * and we can't connect to a specific address of a host
+     */
+    private static final String PROPERTY_ALLOW_RESTRICTED_HEADERS = "sun.net.http.allowRestrictedHeaders";
+
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+    private static class Host {
+        private final List<ServerAddress> addresses = new ArrayList<ServerAddress>();
+        private long resolvedAt = 0L;
+        private boolean pinnable = true;
+    }
+
+    /**
+     * One resolved address of a host
+     */
+    public class ServerAddress {
+        private final String hostName;
+        private final InetAddress address;
+
+        private float speed = 0f;
+        private float errors = 0f;
+        private long errorsDecayedAt = System.currentTimeMillis();
+        private int connections = 0;
+
+        private ServerAddress(String hostName, InetAddress address) {
+            this.hostName = hostName;
+            this.address = address;
+        }
+
+        /**
+         * opens a connection to the given url using this address. If this
+         * address is not bound to a specific server the connection is opened
+         * the usual way.
+         *
+         * @param url
+         * @return
+         * @throws IOException
+         */
+        public HttpURLConnection openConnection(URL url) throws IOException {
+            if (this.address == null) {
+                return (HttpURLConnection) url.openConnection();
+            }
+
+            final URL addressUrl = new URL(url.getProtocol(), this.address.getHostAddress(), url.getPort(), url.getFile());
+            final HttpURLConnection connection = (HttpURLConnection) addressUrl.openConnection();
+            connection.setRequestProperty("Host", url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort());
+            //a redirect would carry our host header to another server
+            connection.setInstanceFollowRedirects(false);
+            return connection;
+        }
+
+        /**
+         * needs to be called with the response code of every connection
+         * opened by this address
+         *
+         * @param responseCode
+         */
+        public void checkResponseCode(int responseCode) {
+            if (this.address != null && responseCode / 100 == 3) {
+                LOGGER.log(Level.INFO, "{0} redirects - not using single addresses for this host anymore", hostName);
+                disablePinning(hostName);
+            }
+        }
+
+        public synchronized void connectionOpened() {
+            this.connections++;
+        }
+
+        public synchronized void connectionClosed() {
+            if (this.connections > 0) {
+                this.connections--;
+            }
+        }
+
+        /**
+         * adds a throughput measurement of one connection
+         *
+         * @param bytes
+         * @param timePassed in ms
+         */
+        public synchronized void addMeasurement(long bytes, long timePassed) {
+            if (timePassed <= 0) {
+                return;
+            }
+            final float currentSpeed = bytes / (timePassed / 1000f);
+            this.speed = this.speed == 0f
+                    ? currentSpeed
+                    : this.speed * (1f - SPEED_SMOOTHING) + currentSpeed * SPEED_SMOOTHING;
+            decayErrors();
+            this.errors *= 0.9f;
+        }
+
+        public synchronized void addError() {
+            decayErrors();
+            this.errors += 1f;
+        }
+
+        /**
+         * forgets the errors over time, so an address that failed once
+         * is tried again later even if it never delivered any data
+         */
+        private void decayErrors() {
+            final long now = System.currentTimeMillis();
+            if (this.errors > 0f) {
+                this.errors *= (float) Math.pow(0.5, (now - this.errorsDecayedAt) / (double) ERROR_HALF_LIFE);
+            }
+            this.errorsDecayedAt = now;
+        }
+
+        private synchronized float getSpeed() {
+            return this.speed;
+        }
+
+        /**
+         * the higher the better: the expected speed of one more connection
+         * to this address. An address without a measurement is expected to be
+         * as fast as the best one, so every address gets tried - but once it
+         * failed it is ranked below all measured addresses (the score is
+         * negative then).
+         *
+         * @param unmeasuredSpeed the speed expected of an unmeasured address
+         * @return
+         */
+        private synchronized float getScore(float unmeasuredSpeed) {
+            decayErrors();
+            if (this.speed == 0f && this.errors > MAX_UNMEASURED_ERRORS) {
+                return -this.errors;
+            }
+            final float expectedSpeed = this.speed == 0f ? unmeasuredSpeed : this.speed;
+            return expectedSpeed / (this.connections + 1) / (1f + this.errors * this.errors);
+        }
+
+        @Override
+        public String toString() {
+            return "ServerAddress{" + "host=" + hostName + ", address=" + address + ", speed=" + speed
+                    + ", errors=" + errors + ", connections=" + connections + '}';
+        }
+
+    }
+
+    /**
+     * selects the best address of the host of the given url for
+     * a new connection.
+     *
+     * @param url
+     * @return
+     */
+    public ServerAddress select(URL url) {
+        if (!url.getProtocol().equalsIgnoreCase("http")) {
+            //certificates are bound to the host name
+            return new ServerAddress(url.getHost(), null);
+        }
+
+        final Host host = getHost(url.getHost());
+        synchronized (host) {
+            float bestSpeed = 0f;
+            for (ServerAddress serverAddress : host.addresses) {
+                bestSpeed = Math.max(bestSpeed, serverAddress.getSpeed());
+            }
+            final float unmeasuredSpeed = bestSpeed == 0f ? DEFAULT_SPEED : bestSpeed;
+
+            ServerAddress best = null;
+            float bestScore = Float.NEGATIVE_INFINITY;
+            for (ServerAddress serverAddress : host.addresses) {
+                final float score = serverAddress.getScore(unmeasuredSpeed);
+                if (score > bestScore) {
+                    best = serverAddress;
+                    bestScore = score;
+                }
+            }
+            return best;
+        }
+    }
+
+    private Host getHost(String hostName) {
+        Host host;
+        synchronized (this.hosts) {
+            host = this.hosts.get(hostName);
+            if (host == null) {
+                host = new Host();
+                this.hosts.put(hostName, host);
+            }
+        }
+
+        synchronized (host) {
+            if (System.currentTimeMillis() - host.resolvedAt > RESOLVE_INTERVAL) {
+                resolve(hostName, host);
+            }
+        }
+        return host;
+    }
+
+    private void resolve(String hostName, Host host) {
+        host.resolvedAt = System.currentTimeMillis();
+
+        InetAddress[] resolved = new InetAddress[0];
+        if (host.pinnable && Boolean.getBoolean(PROPERTY_ALLOW_RESTRICTED_HEADERS)) {
+            try {
+                resolved = InetAddress.getAllByName(hostName);
+            } catch (UnknownHostException e) {
+                LOGGER.log(Level.WARNING, "Could not resolve " + hostName, e);
+            }
+        }
+
+        //keep the statistics of addresses we already know
+        final List<ServerAddress> addresses = new ArrayList<ServerAddress>();
+        if (resolved.length > 1) {
+            for (InetAddress address : resolved) {
+                ServerAddress serverAddress = null;
+                for (ServerAddress knownAddress : host.addresses) {
+                    if (address.equals(knownAddress.address)) {
+                        serverAddress = knownAddress;
+                        break;
+                    }
+                }
+                addresses.add(serverAddress == null ? new ServerAddress(hostName, address) : serverAddress);
+            }
+        } else {
+            //nothing to spread so we let the jvm decide
+            addresses.add(new ServerAddress(hostName, null));
+        }
+
+        host.addresses.clear();
+        host.addresses.addAll(addresses);
+        LOGGER.log(Level.FINE, "Resolved {0} to {1}", new Object[] {hostName, addresses});
+    }
+
+    private void disablePinning(String hostName) {
+        final Host host = getHost(hostName);
+        synchronized (host) {
+            host.pinnable = false;
+            resolve(hostName, host);
+        }
+    }
+
+}
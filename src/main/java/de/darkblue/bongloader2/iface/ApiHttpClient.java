@@ -0,0 +1,184 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.iface;
+
+import com.google.common.io.ByteStreams;
+import de.darkblue.bongloader2.Configuration;
+import de.darkblue.bongloader2.ConfigurationKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Opens the connections to the api. Responses are requested compressed and
+ * every response is read completely, so that the underlying connection is
+ * kept alive and reused for the next request to the same server.
+ *
+ * @author Florian Frankenberger
+ */
+class ApiHttpClient {
+
+    private final Configuration config;
+
+    public ApiHttpClient(Configuration config) {
+        this.config = config;
+    }
+
+    public HttpURLConnection openConnection(String url, String cookies, String requestMethod) throws IOException {
+        final URL target = new URL(url);
+
+        final HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+        connection.setConnectTimeout(config.getAsInt(ConfigurationKey.API_CONNECT_TIMEOUT, 5000));
+        connection.setReadTimeout(config.getAsInt(ConfigurationKey.API_READ_TIMEOUT, 5000));
+        connection.setUseCaches(false);
+        connection.setRequestMethod(requestMethod);
+        connection.setRequestProperty("User-Agent", "Bongloader2");
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        connection.setRequestProperty("Connection", "keep-alive");
+        if (cookies != null && cookies.length() > 0) {
+            connection.setRequestProperty("Cookie", cookies);
+        }
+        connection.setDoInput(true);
+        return connection;
+    }
+
+    /**
+     * returns the decoded response body of the given connection
+     *
+     * @param connection
+     * @return
+     * @throws IOException
+     */
+    public InputStream getInputStream(HttpURLConnection connection) throws IOException {
+        final InputStream in = connection.getInputStream();
+        final String encoding = connection.getContentEncoding();
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(in);
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            return new InflaterInputStream(in, new Inflater());
+        }
+        return in;
+    }
+
+    /**
+     * reads the complete decoded response body of the given connection
+     *
+     * @param connection
+     * @return
+     * @throws IOException
+     */
+    public byte[] readBody(HttpURLConnection connection) throws IOException {
+        final InputStream in = getInputStream(connection);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * reads and drops whatever the server sent (also on errors),
+     * so that the connection can be reused
+     *
+     * @param connection
+     */
+    public void discard(HttpURLConnection connection) {
+        try {
+            InputStream in = connection.getErrorStream();
+            if (in == null) {
+                in = connection.getInputStream();
+            }
+            try {
+                ByteStreams.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            //nothing to read - the connection can't be reused then
+        }
+    }
+
+    /**
+     * the cookies the server set with the given response
+     *
+     * @param connection
+     * @return the cookies (name=value pairs) and the earliest expiry of them
+     */
+    public Session getSession(HttpURLConnection connection) {
+        final StringBuilder cookies = new StringBuilder();
+        long expiry = 0L;
+        final List<String> headers = connection.getHeaderFields().get("Set-Cookie");
+        if (headers != null) {
+            for (String header : headers) {
+                final List<HttpCookie> httpCookies;
+                try {
+                    httpCookies = HttpCookie.parse(header);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                for (HttpCookie httpCookie : httpCookies) {
+                    if (cookies.length() > 0) {
+                        cookies.append("; ");
+                    }
+                    cookies.append(httpCookie.getName()).append('=').append(httpCookie.getValue());
+
+                    if (httpCookie.getMaxAge() >= 0) {
+                        final long cookieExpiry = System.currentTimeMillis() + httpCookie.getMaxAge() * 1000L;
+                        expiry = expiry == 0L ? cookieExpiry : Math.min(expiry, cookieExpiry);
+                    }
+                }
+            }
+        }
+        return new Session(cookies.toString(), expiry);
+    }
+
+    /**
+     * the cookies of a session with the api
+     */
+    public static class Session {
+        private final String cookies;
+        private final long expiry;
+
+        /**
+         * @param cookies
+         * @param expiry the time the session expires or 0 if it is not known
+         */
+        public Session(String cookies, long expiry) {
+            this.cookies = cookies;
+            this.expiry = expiry;
+        }
+
+        public String getCookies() {
+            return cookies;
+        }
+
+        public long getExpiry() {
+            return expiry;
+        }
+
+        public boolean isExpired() {
+            return expiry > 0 && expiry <= System.currentTimeMillis();
+        }
+    }
+
+}
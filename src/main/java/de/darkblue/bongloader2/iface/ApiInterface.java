@@ -18,6 +18,7 @@ package de.darkblue.bongloader2.iface;
 
 import de.darkblue.bongloader2.exception.ReportableException;
 import de.darkblue.bongloader2.model.Recording;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -28,11 +29,12 @@ import java.util.List;
 public interface ApiInterface {
 
     /**
-     * returns a list of recordings
+     * returns a list of recordings. An implementation may return null if
+     * the list did not change since the last call.
      *
      * @param username
      * @param password
-     * @return
+     * @return the recordings or null if unchanged
      * @throws de.darkblue.bongloader2.iface.ApiInterfaceException
      * @throws de.darkblue.bongloader2.exception.ReportableException
      */
@@ -49,6 +51,14 @@ public interface ApiInterface {
      */
     void deleteRecording(String username, String password, Recording recording) throws ApiInterfaceException, ReportableException;
 
+    /**
+     * returns the times when the recordings that are not recorded yet are
+     * expected to be finished, as far as known from the last list of recordings
+     *
+     * @return
+     */
+    List<Date> getExpectedRecordings();
+
     /**
      * returns the version of this api interface as a string
      * 
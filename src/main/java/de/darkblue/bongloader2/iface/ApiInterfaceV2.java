@@ -30,6 +30,8 @@ import java.net.URLEncoder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -71,6 +73,12 @@ public class ApiInterfaceV2 implements ApiInterface {
         return "V2";
     }
 
+    @Override
+    public List<Date> getExpectedRecordings() {
+        //not known in this version of the api
+        return Collections.emptyList();
+    }
+
     @Override
     public List<Recording> downloadRecordingsList(String username, String password) throws ApiInterfaceException, ReportableException {
         try {
@@ -101,6 +109,7 @@ public class ApiInterfaceV2 implements ApiInterface {
                 if (recordingElement.getNodeName().equalsIgnoreCase("recording")) {
                     final Recording recording = new Recording();
                     recording.setId(Integer.valueOf(XmlUtils.getRequiredTag(recordingElement, "id").getTextContent()));
+                    recording.setRemoteId(recording.getId());
 
                     recording.setTitle(XmlUtils.getRequiredTag(recordingElement, "title").getTextContent());
                     recording.setSubtitle(XmlUtils.getRequiredTag(recordingElement, "subtitle").getTextContent());
@@ -171,7 +180,7 @@ public class ApiInterfaceV2 implements ApiInterface {
             LOGGER.log(Level.INFO, "Removing {0}", recording);
 
             Map<Object, Object> credentials = getCredentialsMap(username, password);
-            credentials.put("recordingid", recording.getId());
+            credentials.put("recordingid", recording.getRemoteId());
             final URL apiUrl = new URL(API_DELETE_RECORDING_URL_TEMPLATE.apply(credentials));
 
             try {
@@ -19,17 +19,19 @@ package de.darkblue.bongloader2.iface;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import de.darkblue.bongloader2.Configuration;
+import de.darkblue.bongloader2.ConfigurationKey;
 import de.darkblue.bongloader2.exception.ReportableException;
+import de.darkblue.bongloader2.iface.ApiHttpClient.Session;
 import de.darkblue.bongloader2.model.Recording;
-import de.darkblue.bongloader2.model.Recording.MovieFile;
-import de.darkblue.bongloader2.utils.ToolBox;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
@@ -45,16 +47,33 @@ public class ApiInterfaceV3 implements ApiInterface {
     private static final Logger LOGGER = Logger.getLogger(ApiInterfaceV3.class.getCanonicalName());
 
     private static final String URL_BASE_BONG_TV = "http://www.bong.tv";
-    private static final String STATUS_RECORDED = "recorded";
 
     private static final String URL_USER_SESSION = URL_BASE_BONG_TV + "/api/v1/user_sessions.json";
     private static final String URL_LIST_RECORDINGS = URL_BASE_BONG_TV + "/api/v1/recordings.json";
     private static final String URL_DELETE_RECORDING = URL_BASE_BONG_TV + "/api/v1/recordings/[ID].json";
 
     private final ObjectMapper mapper = new ObjectMapper();
-    private JSONResponse<UserData> lastUserDataResponse = null;
+    private final RecordingsListParser recordingsListParser = new RecordingsListParser(mapper.getFactory(), URL_BASE_BONG_TV);
+    private final Configuration config;
+    private final boolean storeSession;
+    private final ApiHttpClient httpClient;
+    private volatile Session session = null;
+    private volatile RecordingsListState lastRecordingsList = null;
+    private volatile List<Date> expectedRecordings = Collections.emptyList();
+
+    public ApiInterfaceV3(Configuration config) {
+        this(config, true);
+    }
 
-    public ApiInterfaceV3() {
+    /**
+     * @param config
+     * @param storeSession true if the session should be stored in the
+     *                     configuration to be reused after a restart
+     */
+    public ApiInterfaceV3(Configuration config, boolean storeSession) {
+        this.config = config;
+        this.storeSession = storeSession;
+        this.httpClient = new ApiHttpClient(config);
         mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
     }
 
@@ -63,6 +82,11 @@ public class ApiInterfaceV3 implements ApiInterface {
         return "V3";
     }
 
+    @Override
+    public List<Date> getExpectedRecordings() {
+        return expectedRecordings;
+    }
+
     @Override
     public List<Recording> downloadRecordingsList(String username, String password) throws ApiInterfaceException, ReportableException {
         return downloadRecordingsList(0, username, password);
@@ -70,11 +94,7 @@ public class ApiInterfaceV3 implements ApiInterface {
 
     public List<Recording> downloadRecordingsList(int iteration, String username, String password) throws ApiInterfaceException, ReportableException {
         try {
-            if (lastUserDataResponse == null) {
-                login(username, password);
-            }
-            JSONResponse<ApiRecordings> result = call(URL_LIST_RECORDINGS, lastUserDataResponse.getCookies(), RequestMethod.GET, ApiRecordings.class);
-            return result.getPayload().toRecordings();
+            return callRecordingsList(getSession(username, password).getCookies());
         } catch (IOException e) {
             throw new ApiInterfaceException(e);
         } catch (LoginException e) {
@@ -82,8 +102,8 @@ public class ApiInterfaceV3 implements ApiInterface {
                             "Der angegebene Benutzername und/oder Passwort stimmen nicht. Bitte korrigieren Sie die Zugangsdaten in den Einstellungen");
         } catch (UnexpectedResponseCodeException e) {
             //on code 401 we are not authorized anymore. We delete the credentials and try again.
-            if (e.getResponseCode() / 100 == 4 && iteration < 3) {
-                lastUserDataResponse = null;
+            if (isUnauthorized(e) && iteration < 3) {
+                invalidateSession();
                 return downloadRecordingsList(iteration + 1, username, password);
             } else {
                 throw new ApiInterfaceException(e);
@@ -100,11 +120,8 @@ public class ApiInterfaceV3 implements ApiInterface {
     public void deleteRecording(int iteration, String username, String password, Recording recording)
             throws ApiInterfaceException, ReportableException {
         try {
-            if (lastUserDataResponse == null) {
-                login(username, password);
-            }
-            String url = URL_DELETE_RECORDING.replace("[ID]", String.valueOf(recording.getId()));
-            call(url, lastUserDataResponse.getCookies(), RequestMethod.DELETE);
+            String url = URL_DELETE_RECORDING.replace("[ID]", String.valueOf(recording.getRemoteId()));
+            call(url, getSession(username, password).getCookies(), RequestMethod.DELETE);
         } catch (IOException e) {
             throw new ApiInterfaceException(e);
         } catch (LoginException e) {
@@ -112,8 +129,8 @@ public class ApiInterfaceV3 implements ApiInterface {
                             "Der angegebene Benutzername und/oder Passwort stimmen nicht. Bitte korrigieren Sie die Zugangsdaten in den Einstellungen");
         } catch (UnexpectedResponseCodeException e) {
             //on code 401 we are not authorized anymore. We delete the credentials and try again.
-            if (e.getResponseCode() / 100 == 4 && iteration < 3) {
-                lastUserDataResponse = null;
+            if (isUnauthorized(e) && iteration < 3) {
+                invalidateSession();
                 deleteRecording(iteration + 1, username, password, recording);
             } else {
                 throw new ApiInterfaceException(e);
@@ -121,18 +138,113 @@ public class ApiInterfaceV3 implements ApiInterface {
         }
     }
 
-    private void login(String username, String password) throws IOException, LoginException {
+    private static boolean isUnauthorized(UnexpectedResponseCodeException e) {
+        return e.getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED
+                || e.getResponseCode() == HttpURLConnection.HTTP_FORBIDDEN;
+    }
+
+    /**
+     * returns the current session for the given user. A session that was
+     * stored in the configuration is reused as long as it is not expired,
+     * otherwise a new one is created by logging in.
+     */
+    private Session getSession(String username, String password) throws IOException, LoginException {
+        Session currentSession = this.session;
+        if (currentSession == null && storeSession
+                && username.equals(config.get(ConfigurationKey.API_SESSION_USER, null))
+                && !config.get(ConfigurationKey.API_SESSION, "").isEmpty()) {
+            currentSession = new Session(config.get(ConfigurationKey.API_SESSION),
+                    config.getAsLong(ConfigurationKey.API_SESSION_EXPIRY, 0L));
+            LOGGER.fine("Reusing stored api session");
+        }
+
+        if (currentSession == null || currentSession.isExpired()) {
+            currentSession = login(username, password);
+        }
+        this.session = currentSession;
+        return currentSession;
+    }
+
+    private void invalidateSession() {
+        this.session = null;
+        if (storeSession) {
+            config.clear(ConfigurationKey.API_SESSION_USER);
+        }
+    }
+
+    private Session login(String username, String password) throws IOException, LoginException {
         Credentials credentials = new Credentials();
         credentials.login = username;
         credentials.password = password;
 
         try {
-            lastUserDataResponse = call(URL_USER_SESSION, RequestMethod.POST, credentials, UserData.class);
+            final Session newSession = call(URL_USER_SESSION, RequestMethod.POST, credentials, UserData.class).getSession();
+            //this might be another user
+            lastRecordingsList = null;
+            expectedRecordings = Collections.<Date>emptyList();
+
+            if (storeSession) {
+                config.set(ConfigurationKey.API_SESSION, newSession.getCookies());
+                config.setLong(ConfigurationKey.API_SESSION_EXPIRY, newSession.getExpiry());
+                config.set(ConfigurationKey.API_SESSION_USER, username);
+            }
+            return newSession;
         } catch (UnexpectedResponseCodeException e) {
             throw new LoginException();
         }
     }
 
+    /**
+     * retrieves the recordings list. The list is only parsed if it changed
+     * since the last call: the server is asked for changes by the validators
+     * of the last response and if it does not support those, the body is
+     * compared by its hash.
+     *
+     * @param cookies
+     * @return the recordings or null if the list did not change
+     * @throws IOException
+     * @throws UnexpectedResponseCodeException
+     */
+    private List<Recording> callRecordingsList(String cookies) throws IOException, UnexpectedResponseCodeException {
+        final RecordingsListState lastState = this.lastRecordingsList;
+        final HttpURLConnection connection = httpClient.openConnection(URL_LIST_RECORDINGS, cookies, RequestMethod.GET.name());
+        if (lastState != null) {
+            if (lastState.eTag != null) {
+                connection.setRequestProperty("If-None-Match", lastState.eTag);
+            }
+            if (lastState.lastModified > 0) {
+                connection.setIfModifiedSince(lastState.lastModified);
+            }
+        }
+
+        final int responseCode = connection.getResponseCode();
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && lastState != null) {
+            httpClient.discard(connection);
+            LOGGER.fine("Recordings list not modified");
+            return null;
+        }
+        if (responseCode / 100 != 2) {
+            httpClient.discard(connection);
+            throw new UnexpectedResponseCodeException(responseCode);
+        }
+
+        final byte[] body = httpClient.readBody(connection);
+        final byte[] hash = Hashing.md5().hashBytes(body).asBytes();
+        final RecordingsListState state = new RecordingsListState(connection.getHeaderField("ETag"),
+                connection.getLastModified(), hash);
+        if (lastState != null && Arrays.equals(lastState.hash, hash)) {
+            LOGGER.fine("Recordings list unchanged");
+            this.lastRecordingsList = state;
+            return null;
+        }
+
+        final List<Date> expected = new ArrayList<Date>();
+        final List<Recording> recordings = recordingsListParser.parse(body, expected);
+        this.expectedRecordings = Collections.unmodifiableList(expected);
+        this.lastRecordingsList = state;
+        return recordings;
+    }
+
     private <T> JSONResponse<T> call(String url, String cookies, RequestMethod requestMethod,
             Class<T> returnClass) throws IOException, UnexpectedResponseCodeException {
         return this.call(url, cookies, requestMethod, null, returnClass);
@@ -159,17 +271,7 @@ public class ApiInterfaceV3 implements ApiInterface {
      */
     private <T> JSONResponse<T> call(String url, String cookies, RequestMethod requestMethod, Object parameter,
             Class<T> returnClass) throws IOException, UnexpectedResponseCodeException {
-        final URL target = new URL(url);
-
-        final HttpURLConnection connection = (HttpURLConnection) target.openConnection();
-        connection.setReadTimeout(5000);
-        connection.setDefaultUseCaches(false);
-        connection.setRequestMethod(requestMethod.name().toUpperCase());
-        connection.setRequestProperty("User-Agent", "Bongloader2");
-        if (cookies != null && cookies.length() > 0) {
-            connection.setRequestProperty("Cookie", cookies);
-        }
-        connection.setDoInput(true);
+        final HttpURLConnection connection = httpClient.openConnection(url, cookies, requestMethod.name());
 
         if (parameter != null) {
             final byte[] body = mapper.writeValueAsBytes(parameter);
@@ -190,32 +292,23 @@ public class ApiInterfaceV3 implements ApiInterface {
 
         final int responseCode = connection.getResponseCode();
         if (responseCode / 100 != 2) {
+            httpClient.discard(connection);
             throw new UnexpectedResponseCodeException(responseCode);
         }
 
-
-        final String encoding = connection.getHeaderField("Content-Encoding");
-        System.out.println(">>> " + connection.getHeaderFields());
-
         if (returnClass != null) {
-            InputStream in = connection.getInputStream();
-//            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-//            String line;
-//            while ((line = reader.readLine()) != null) {
-//                System.out.println(line);
-//            }
+            InputStream in = httpClient.getInputStream(connection);
             try {
                 T result;
                 result = mapper.readValue(in, returnClass);
-                String newCookies = connection.getHeaderField("Set-Cookie") != null ? connection.getHeaderField("Set-Cookie") : "";
-                JSONResponse<T> response = new JSONResponse<T>(result, newCookies);
-                return response;
+                return new JSONResponse<T>(result, httpClient.getSession(connection));
             } finally {
                 if (in != null) {
                     in.close();
                 }
             }
         } else {
+            httpClient.discard(connection);
             return null;
         }
 
@@ -251,219 +344,32 @@ public class ApiInterfaceV3 implements ApiInterface {
         public String eMail;
     }
 
-    private static class ApiRecordings {
-        public List<ApiRecording> recordings;
-
-        public List<Recording> toRecordings() throws MalformedURLException {
-            final List<Recording> result = new ArrayList<Recording>();
-            for (ApiRecording recording : this.recordings) {
-                //only add recorded recordings -.-
-                if (recording.status.equalsIgnoreCase(STATUS_RECORDED)) {
-                    result.add(recording.toRecording());
-                }
-            }
-            return result;
-        }
-
-        @Override
-        public String toString() {
-            return "Recordings{" + "recordings=" + recordings + '}';
-        }
-    }
-
-    private static class ApiRecording {
-
-        public int id;
-
-        @JsonProperty("broadcast_id")
-        public int broadcastId;
-        public String title;
-
-        // although this is called starts_at_ms this is actually in seconds
-        @JsonProperty("starts_at_ms")
-        public long startsAtS;
-
-        @JsonProperty("starts_at_date")
-        public String startAtDate;
-
-        @JsonProperty("starts_at_time")
-        public String startAtTime;
-
-        @JsonProperty("ends_at_time")
-        public String endsAtTime;
-
-        @JsonProperty("channel_id")
-        public int channelId;
-
-        public String status;
-        public int quality;
-        public int version;
-
-        @JsonProperty("broadcast_was_deleted")
-        public boolean broadcastWasDeleted;
-
-        public List<ApiRecordingFile> files;
-
-        public ApiRecordingImage image;
-
-        public List<ApiRecordingCategory> categories;
-
-        public ApiRecordingBroadcast broadcast;
-
-        public Recording toRecording() throws MalformedURLException {
-            Recording recording = new Recording();
-            recording.setId(id);
-            recording.setChannel(ToolBox.cleanString(this.broadcast.channelName));
-            recording.setDescription(this.broadcast.shortText == null
-                    ? ""
-                    : ToolBox.cleanString(this.broadcast.shortText));
-            recording.setDuration(this.broadcast.duration);
-            recording.setTitle(ToolBox.cleanString(title));
-            recording.setGenre(this.categories.isEmpty()
-                    ? ""
-                    : ToolBox.cleanString(this.categories.get(0).name));
-            recording.setSubtitle(this.broadcast.subtitle == null
-                    ? ""
-                    : ToolBox.cleanString(this.broadcast.subtitle));
-
-            if (this.broadcast.serie != null) {
-                recording.setSeriesNumber(this.broadcast.serie.episode);
-                recording.setSeriesSeason(this.broadcast.serie.season);
-            }
-
-            if (this.image != null) {
-                recording.setThumbUrl(new URL(URL_BASE_BONG_TV + this.image.href));
-            }
-            for (ApiRecordingFile file : files) {
-                final Recording.MovieFile.Quality aQuality = Recording.MovieFile.Quality.parse(file.quality);
-                MovieFile movieFile = new Recording.MovieFile(new URL(file.href), aQuality);
-                recording.addFileURL(aQuality, movieFile);
-            }
-            recording.setStart(new Date(this.broadcast.startsAtS * 1000L));
-
-            return recording;
-        }
-
-        @Override
-        public String toString() {
-            return "Recording{" + "id=" + id + ", broadcastId=" + broadcastId + ", title=" + title + ", startsAtMs=" + startsAtS + ", startAtDate=" + startAtDate + ", startAtTime=" + startAtTime + ", endsAtTime=" + endsAtTime + ", channelId=" + channelId + ", status=" + status + ", quality=" + quality + ", version=" + version + ", broadcastWasDeleted=" + broadcastWasDeleted + ", files=" + files + ", image=" + image + ", categories=" + categories + ", broadcast=" + broadcast + '}';
-        }
-
-    }
-
-    private static class ApiRecordingBroadcast {
-        public int id;
-        public String title;
-
-        // although this is called starts_at_ms this is actually in seconds
-        @JsonProperty("starts_at_ms")
-        public long startsAtS;
-
-        @JsonProperty("starts_at_date")
-        public String startAtDate;
-
-        @JsonProperty("starts_at_time")
-        public String startAtTime;
-
-        @JsonProperty("ends_at_time")
-        public String endsAtTime;
-
-        @JsonProperty("ends_at_ms")
-        public String endsAtMs;
-
-        public String country;
-
-        @JsonProperty("productionYear")
-        public int productionYear;
-
-        @JsonProperty("channel_id")
-        public int channelId;
-
-        @JsonProperty("serie_id")
-        public int serieId;
-
-        public List<ApiRecordingCategory> categories;
-
-        @JsonProperty("short_text")
-        public String shortText;
-
-        public String subtitle;
-
-        @JsonProperty("channel_name")
-        public String channelName;
-
-        public ApiRecordingSerie serie;
-
-        public boolean hd;
-        public int duration;
-
-        public ApiRecordingImage image;
-
-        @Override
-        public String toString() {
-            return "RecordingBroadcast{" + "id=" + id + ", title=" + title + ", startsAtMs=" + startsAtS + ", startAtDate=" + startAtDate + ", startAtTime=" + startAtTime + ", endsAtTime=" + endsAtTime + ", endsAtMs=" + endsAtMs + ", country=" + country + ", productionYear=" + productionYear + ", channelId=" + channelId + ", serieId=" + serieId + ", categories=" + categories + ", shortText=" + shortText + ", subtitle=" + subtitle + ", channelName=" + channelName + ", serie=" + serie + ", hd=" + hd + ", duration=" + duration + ", image=" + image + '}';
-        }
-
-    }
-
-    private static class ApiRecordingSerie {
-        public Integer season;
-        public Integer episode;
-
-        @JsonProperty("total_episodes")
-        public Integer totalEpisodes;
-
-        @Override
-        public String toString() {
-            return "RecordingSerie{" + "season=" + season + ", episode=" + episode + ", totalEpisodes=" + totalEpisodes + '}';
-        }
-    }
-
-    private static class ApiRecordingCategory {
-        public String name;
-
-        @JsonProperty("parent_name")
-        public String parentName;
-
-        @Override
-        public String toString() {
-            return "RecordingCategory{" + "name=" + name + ", parentName=" + parentName + '}';
-        }
-
-    }
-
-    private static class ApiRecordingImage {
-        public int id;
-        public String href;
-
-        @Override
-        public String toString() {
-            return "RecordingImage{" + "id=" + id + ", href=" + href + '}';
-        }
-    }
-
-    private static class ApiRecordingFile {
-        public int id;
-        public String href;
-        public String quality;
-
-        @Override
-        public String toString() {
-            return "RecordingFile{" + "id=" + id + ", href=" + href + ", quality=" + quality + '}';
+    /**
+     * what is known about the last retrieved recordings list
+     */
+    private static class RecordingsListState {
+        private final String eTag;
+        private final long lastModified;
+        private final byte[] hash;
+
+        public RecordingsListState(String eTag, long lastModified, byte[] hash) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.hash = hash;
         }
     }
 
     private static class JSONResponse<T> {
         private final T payload;
-        private final String cookies;
+        private final Session session;
 
-        public JSONResponse(T payload, String cookies) {
+        public JSONResponse(T payload, Session session) {
             this.payload = payload;
-            this.cookies = cookies;
+            this.session = session;
         }
 
-        public String getCookies() {
-            return cookies;
+        public Session getSession() {
+            return session;
         }
 
         public T getPayload() {
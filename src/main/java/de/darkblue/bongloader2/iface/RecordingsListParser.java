@@ -0,0 +1,254 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.iface;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.darkblue.bongloader2.model.Recording;
+import de.darkblue.bongloader2.model.Recording.MovieFile;
+import de.darkblue.bongloader2.model.Recording.MovieFile.Quality;
+import de.darkblue.bongloader2.utils.ToolBox;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the recordings list of the api V3 token by token. Only the fields
+ * that end up in a {@link Recording} are read, everything else is skipped
+ * without being materialized.
+ *
+ * @author Florian Frankenberger
+ */
+class RecordingsListParser {
+
+    private static final String STATUS_RECORDED = "recorded";
+
+    private final JsonFactory jsonFactory;
+    private final String baseUrl;
+
+    public RecordingsListParser(JsonFactory jsonFactory, String baseUrl) {
+        this.jsonFactory = jsonFactory;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * parses the given recordings list
+     *
+     * @param data
+     * @param expectedRecordings the end times of the recordings that are not recorded
+     *                           yet are added here
+     * @return all recordings that are recorded already
+     * @throws IOException
+     */
+    public List<Recording> parse(byte[] data, List<Date> expectedRecordings) throws IOException {
+        final List<Recording> result = new ArrayList<Recording>();
+        final JsonParser parser = jsonFactory.createParser(data);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Recordings list is not a json object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && "recordings".equals(name)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        final Recording recording = new Recording();
+                        //only add recorded recordings -.-
+                        if (parseRecording(parser, recording)) {
+                            result.add(recording);
+                        } else if (recording.getStart() != null) {
+                            expectedRecordings.add(new Date(recording.getStart().getTime()
+                                    + recording.getDuration() * 60 * 1000L));
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return result;
+    }
+
+    /**
+     * parses one entry of the list. Of entries that are not recorded yet
+     * only the start and the duration are used, so their urls are never
+     * built (and a broken url of such an entry doesn't matter).
+     *
+     * @return true if the recording is recorded
+     */
+    private boolean parseRecording(JsonParser parser, Recording recording) throws IOException {
+        recording.setDescription("");
+        recording.setGenre("");
+        recording.setSubtitle("");
+
+        String status = null;
+        String thumbHref = null;
+        final Map<Quality, String> fileHrefs = new EnumMap<Quality, String>(Quality.class);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            final boolean recorded = status == null || STATUS_RECORDED.equalsIgnoreCase(status);
+            if ("status".equals(name)) {
+                status = parser.getValueAsString();
+            } else if ("broadcast".equals(name) && token == JsonToken.START_OBJECT) {
+                parseBroadcast(parser, recording);
+            } else if (!recorded) {
+                parser.skipChildren();
+            } else if ("id".equals(name)) {
+                recording.setId(parser.getValueAsInt());
+                recording.setRemoteId(recording.getId());
+            } else if ("title".equals(name)) {
+                recording.setTitle(ToolBox.cleanString(parser.getValueAsString()));
+            } else if ("categories".equals(name) && token == JsonToken.START_ARRAY) {
+                recording.setGenre(parseFirstCategory(parser));
+            } else if ("image".equals(name) && token == JsonToken.START_OBJECT) {
+                thumbHref = parseImage(parser);
+            } else if ("files".equals(name) && token == JsonToken.START_ARRAY) {
+                parseFiles(parser, fileHrefs);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (!STATUS_RECORDED.equalsIgnoreCase(status)) {
+            return false;
+        }
+
+        if (thumbHref != null) {
+            recording.setThumbUrl(new URL(baseUrl + thumbHref));
+        }
+        for (Map.Entry<Quality, String> fileHref : fileHrefs.entrySet()) {
+            recording.addFileURL(fileHref.getKey(), new MovieFile(new URL(fileHref.getValue()), fileHref.getKey()));
+        }
+        return true;
+    }
+
+    private void parseBroadcast(JsonParser parser, Recording recording) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if ("channel_name".equals(name)) {
+                recording.setChannel(ToolBox.cleanString(parser.getValueAsString()));
+            } else if ("short_text".equals(name)) {
+                recording.setDescription(cleanNullableString(parser));
+            } else if ("subtitle".equals(name)) {
+                recording.setSubtitle(cleanNullableString(parser));
+            } else if ("duration".equals(name)) {
+                recording.setDuration(parser.getValueAsInt());
+            } else if ("starts_at_ms".equals(name)) {
+                // although this is called starts_at_ms this is actually in seconds
+                recording.setStart(new Date(parser.getValueAsLong() * 1000L));
+            } else if ("serie".equals(name) && token == JsonToken.START_OBJECT) {
+                parseSerie(parser, recording);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void parseSerie(JsonParser parser, Recording recording) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("episode".equals(name)) {
+                recording.setSeriesNumber(getNullableInt(parser));
+            } else if ("season".equals(name)) {
+                recording.setSeriesSeason(getNullableInt(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private String parseFirstCategory(JsonParser parser) throws IOException {
+        String genre = "";
+        boolean first = true;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (first && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("name".equals(name)) {
+                        genre = ToolBox.cleanString(parser.getValueAsString());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+            first = false;
+        }
+        return genre;
+    }
+
+    private String parseImage(JsonParser parser) throws IOException {
+        String href = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("href".equals(name)) {
+                href = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return href;
+    }
+
+    private void parseFiles(JsonParser parser, Map<Quality, String> fileHrefs) throws IOException {
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+
+            String href = null;
+            String quality = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                parser.nextToken();
+                if ("href".equals(name)) {
+                    href = parser.getValueAsString();
+                } else if ("quality".equals(name)) {
+                    quality = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            fileHrefs.put(Quality.parse(quality), href);
+        }
+    }
+
+    private static String cleanNullableString(JsonParser parser) throws IOException {
+        final String value = parser.getValueAsString();
+        return value == null ? "" : ToolBox.cleanString(value);
+    }
+
+    private static Integer getNullableInt(JsonParser parser) throws IOException {
+        return parser.getCurrentToken() == JsonToken.VALUE_NULL ? null : parser.getValueAsInt();
+    }
+
+}
@@ -0,0 +1,190 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.model;
+
+import de.darkblue.bongloader2.model.Recording.MovieFile.Quality;
+import de.darkblue.bongloader2.model.data.RecordCodec;
+import de.darkblue.bongloader2.model.data.RecordReader;
+import de.darkblue.bongloader2.model.data.RecordWriter;
+import de.darkblue.bongloader2.utils.Crc32;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * A finished download that was moved to the download archive. It keeps
+ * what is needed to find the file again, but not the parts, and it
+ * can't be changed anymore.
+ * <p>
+ * As the ids of downloads can be reused once a download has been
+ * archived, two archived downloads are only equal if they have the
+ * same id and were downloaded at the same time.
+ *
+ * @author Florian Frankenberger
+ */
+public final class ArchivedDownload {
+
+    private final int downloadId;
+    private final int recordingId;
+    private final String title;
+    private final String subtitle;
+    private final String channel;
+    private final Date start;
+    private final Quality quality;
+    private final File targetFile;
+    private final long totalBytes;
+    private final Date downloadedAt;
+    private final Long checksum;
+
+    public ArchivedDownload(int downloadId, int recordingId, String title, String subtitle, String channel,
+            Date start, Quality quality, File targetFile, long totalBytes, Date downloadedAt, Long checksum) {
+        this.downloadId = downloadId;
+        this.recordingId = recordingId;
+        this.title = title;
+        this.subtitle = subtitle;
+        this.channel = channel;
+        this.start = start;
+        this.quality = quality;
+        this.targetFile = targetFile;
+        this.totalBytes = totalBytes;
+        this.downloadedAt = downloadedAt;
+        this.checksum = checksum;
+    }
+
+    /**
+     * creates the archived version of a finished download
+     *
+     * @param download
+     * @param downloadedAt when the download was finished
+     * @return
+     */
+    public static ArchivedDownload of(Download download, Date downloadedAt) {
+        final Recording recording = download.getRecording();
+        final Crc32 checksum = download.getChecksum();
+        return new ArchivedDownload(download.getId(), download.getRecordingId(),
+                recording.getTitle(), recording.getSubtitle(), recording.getChannel(), recording.getStart(),
+                download.getQuality(), download.getTargetFile(), download.getTotalBytes(), downloadedAt,
+                checksum == null ? null : checksum.getValue());
+    }
+
+    public int getDownloadId() {
+        return downloadId;
+    }
+
+    public int getRecordingId() {
+        return recordingId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getSubtitle() {
+        return subtitle;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    public Quality getQuality() {
+        return quality;
+    }
+
+    public File getTargetFile() {
+        return targetFile;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public Date getDownloadedAt() {
+        return downloadedAt;
+    }
+
+    /**
+     * the crc32 of the whole file or null if it was not known
+     *
+     * @return
+     */
+    public Long getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * downloadId + (int) (downloadedAt.getTime() ^ (downloadedAt.getTime() >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ArchivedDownload)) {
+            return false;
+        }
+        final ArchivedDownload other = (ArchivedDownload) obj;
+        return this.downloadId == other.downloadId
+                && this.downloadedAt.equals(other.downloadedAt);
+    }
+
+    @Override
+    public String toString() {
+        return "ArchivedDownload{" + "downloadId=" + downloadId + ", recordingId=" + recordingId + ", title="
+                + title + ", quality=" + quality + ", targetFile=" + targetFile + ", downloadedAt=" + downloadedAt + '}';
+    }
+
+    public static class ArchivedDownloadCodec implements RecordCodec<ArchivedDownload> {
+
+        @Override
+        public void write(ArchivedDownload download, RecordWriter out) throws IOException {
+            out.writeInt(download.downloadId);
+            out.writeInt(download.recordingId);
+            out.writeString(download.title);
+            out.writeString(download.subtitle);
+            out.writeString(download.channel);
+            out.writeDate(download.start);
+            out.writeString(download.quality.name());
+            out.writeString(download.targetFile.toString());
+            out.writeLong(download.totalBytes);
+            out.writeLong(download.downloadedAt.getTime());
+            out.writeNullableLong(download.checksum);
+        }
+
+        @Override
+        public ArchivedDownload read(RecordReader in) throws IOException {
+            final int downloadId = in.readInt();
+            final int recordingId = in.readInt();
+            final String title = in.readString();
+            final String subtitle = in.readString();
+            final String channel = in.readString();
+            final Date start = in.readDate();
+            final Quality quality = Quality.valueOf(in.readString());
+            final File targetFile = new File(in.readString());
+            final long totalBytes = in.readLong();
+            final Date downloadedAt = new Date(in.readLong());
+            final Long checksum = in.readNullableLong();
+            return new ArchivedDownload(downloadId, recordingId, title, subtitle, channel, start,
+                    quality, targetFile, totalBytes, downloadedAt, checksum);
+        }
+
+    }
+
+}
@@ -24,16 +24,22 @@ import de.darkblue.bongloader2.model.Download.Part;
 import de.darkblue.bongloader2.model.Recording.MovieFile;
 import de.darkblue.bongloader2.model.Recording.MovieFile.Quality;
 import de.darkblue.bongloader2.model.data.AbstractUpdateable;
+import de.darkblue.bongloader2.model.data.RecordCodec;
+import de.darkblue.bongloader2.model.data.RecordReader;
+import de.darkblue.bongloader2.model.data.RecordWriter;
 import de.darkblue.bongloader2.model.data.Storable;
 import de.darkblue.bongloader2.model.data.UpdateableListener;
+import de.darkblue.bongloader2.utils.Crc32;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * One download of a recording with all information about
@@ -53,9 +59,10 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
     private final Quality quality;
     private File targetFile;
 
-    private List<Part> parts = Collections.synchronizedList(new ArrayList<Part>());
+    private List<Part> parts = new CopyOnWriteArrayList<Part>();
     private volatile boolean downloaded = false;
     private volatile Date downloadedAt = null;
+    private volatile Crc32 checksum = null;
 
     private transient volatile boolean downloading = false;
     private transient volatile boolean invalid = false;
@@ -69,6 +76,11 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
         private volatile long length;
         private volatile long loaded = 0;
 
+        /**
+         * checksum of the loaded bytes of this part or null if unknown
+         */
+        private volatile Crc32 checksum = Crc32.EMPTY;
+
         public Part(long offset, long length) {
             this.offset = offset;
             this.length = length;
@@ -87,11 +99,47 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
             return loaded;
         }
 
+        /**
+         * sets the amount of loaded bytes. The checksum of this part stays
+         * only known if it covers exactly the loaded bytes.
+         *
+         * @param loaded
+         */
         public void setLoaded(long loaded) {
-            this.loaded = loaded;
+            synchronized (this) {
+                final Crc32 currentChecksum = this.checksum;
+                if (loaded == 0) {
+                    this.checksum = Crc32.EMPTY;
+                } else if (currentChecksum == null || currentChecksum.getLength() != loaded) {
+                    this.checksum = null;
+                }
+                this.loaded = loaded;
+            }
+            notifyOnUpdate();
+        }
+
+        /**
+         * adds the given bytes (that have been written to the download
+         * file) to this part and updates its checksum on the fly.
+         *
+         * @param buffer
+         * @param count
+         */
+        public void addLoaded(byte[] buffer, int count) {
+            synchronized (this) {
+                final Crc32 currentChecksum = this.checksum;
+                if (currentChecksum != null) {
+                    this.checksum = currentChecksum.update(buffer, 0, count);
+                }
+                this.loaded += count;
+            }
             notifyOnUpdate();
         }
 
+        public Crc32 getChecksum() {
+            return checksum;
+        }
+
         public long getOffset() {
             return offset;
         }
@@ -101,13 +149,36 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
             notifyOnUpdate();
         }
 
+        public long getRemaining() {
+            return length - loaded;
+        }
+
+        /**
+         * splits off the second half of the not yet loaded bytes of this part
+         * into a new part. This part is shortened accordingly. Returns null
+         * if both halves would be smaller than minLength.
+         *
+         * @param minLength
+         * @return the new part or null
+         */
+        public synchronized Part split(long minLength) {
+            final long remaining = getRemaining();
+            if (remaining < 2 * minLength) {
+                return null;
+            }
+            final long newLength = remaining / 2;
+            this.length = this.length - newLength;
+            notifyOnUpdate();
+            return new Part(this.offset + this.length, newLength);
+        }
+
         @Override
         public int getId() {
             throw new UnsupportedOperationException("Not supported.");
         }
 
         @Override
-        public void update(Part other) {
+        public boolean update(Part other) {
             throw new UnsupportedOperationException("Not supported.");
         }
 
@@ -186,6 +257,10 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
         notifyOnUpdate();
     }
 
+    public Quality getQuality() {
+        return quality;
+    }
+
     public MovieFile getMovieFile() {
         return recording.getMovieFile(this.quality);
     }
@@ -238,6 +313,54 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
         return downloadedAt;
     }
 
+    /**
+     * the checksum of the whole file or null if it is
+     * not (yet) known
+     *
+     * @return
+     */
+    public Crc32 getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * combines the checksums of all parts to the checksum of the whole file
+     * and stores it. This only works if all parts are fully loaded and their
+     * checksums are known.
+     *
+     * @return the checksum or null if it could not be calculated
+     */
+    public Crc32 calculateChecksum() {
+        final List<Part> sortedParts = new ArrayList<Part>(this.parts);
+        Collections.sort(sortedParts, new Comparator<Part>() {
+
+            @Override
+            public int compare(Part o1, Part o2) {
+                return Long.valueOf(o1.getOffset()).compareTo(o2.getOffset());
+            }
+
+        });
+
+        Crc32 fileChecksum = Crc32.EMPTY;
+        for (Part part : sortedParts) {
+            final Crc32 partChecksum = part.getChecksum();
+            if (part.getOffset() != fileChecksum.getLength()
+                    || partChecksum == null
+                    || partChecksum.getLength() != part.getLength()) {
+                return null;
+            }
+            fileChecksum = fileChecksum.append(partChecksum);
+        }
+
+        if (fileChecksum.getLength() != this.totalBytes) {
+            return null;
+        }
+
+        this.checksum = fileChecksum;
+        this.notifyOnUpdate();
+        return fileChecksum;
+    }
+
     public void setDownloading(boolean downloading) {
         this.downloading = downloading;
         this.notifyOnUpdate();
@@ -248,11 +371,13 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
             part.removeListener(this);
         }
         this.parts.clear();
+        this.notifyOnUpdate();
     }
 
     public void addPart(Part part) {
         this.parts.add(part);
         part.addListener(this);
+        this.notifyOnUpdate();
     }
 
     public boolean isDownloading() {
@@ -287,8 +412,9 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
     }
 
     @Override
-    public void update(Download other) {
+    public boolean update(Download other) {
         //can't update a download
+        return false;
     }
 
     private transient volatile long lastUpdate = 0L;
@@ -310,10 +436,41 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
                 + invalid + '}';
     }
 
+    private static Part restorePart(long offset, long length, long loaded, Long checksum, Long checksumLength) {
+        final Part part = new Part(offset, length);
+        part.loaded = loaded;
+        if (checksum != null && checksumLength != null && checksumLength <= loaded) {
+            //continue from the last checksummed byte
+            part.checksum = new Crc32(checksum, checksumLength);
+            part.loaded = checksumLength;
+        } else {
+            part.checksum = loaded == 0 ? Crc32.EMPTY : null;
+        }
+        return part;
+    }
+
+    private static Download restoreDownload(int id, int recordingId, long totalBytes, int priority, Quality quality,
+            List<Part> parts, boolean downloaded, Date downloadedAt, File targetFile, Long checksum) {
+        Download download = new Download(id, priority, recordingId, quality, targetFile);
+        download.totalBytes = totalBytes;
+        for (Part part : parts) {
+            download.parts.add(part);
+            part.addListener(download);
+        }
+        download.downloaded = downloaded;
+        download.downloadedAt = downloadedAt;
+        if (checksum != null) {
+            download.checksum = new Crc32(checksum, totalBytes);
+        }
+        return download;
+    }
+
     public static class PartMarshaller implements DataMarshaller<Part> {
         private static final DataKey<Long> KEY_OFFSET = DataKey.create("offset", Long.class);
         private static final DataKey<Long> KEY_LENGTH = DataKey.create("length", Long.class);
         private static final DataKey<Long> KEY_LOADED = DataKey.create("loaded", Long.class, 0L);
+        private static final DataKey<Long> KEY_CHECKSUM = DataKey.create("checksum", Long.class, null);
+        private static final DataKey<Long> KEY_CHECKSUM_LENGTH = DataKey.create("checksum length", Long.class, null);
 
         @Override
         public String getDataClassName() {
@@ -332,10 +489,17 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
 
         @Override
         public DataNode marshal(Part part) {
+            //the checksum is read before the loaded bytes so it never covers
+            //more than the stored loaded bytes
+            final Crc32 checksum = part.checksum;
             DataNode dataNode = new DataNode();
             dataNode.setObject(KEY_OFFSET, part.offset);
             dataNode.setObject(KEY_LENGTH, part.length);
             dataNode.setObject(KEY_LOADED, part.loaded);
+            if (checksum != null) {
+                dataNode.setObject(KEY_CHECKSUM, checksum.getValue());
+                dataNode.setObject(KEY_CHECKSUM_LENGTH, checksum.getLength());
+            }
             return dataNode;
         }
 
@@ -343,10 +507,10 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
         public Part unMarshal(DataNode dataNode) {
             final long offset = dataNode.getMandatoryObject(KEY_OFFSET);
             final long length = dataNode.getMandatoryObject(KEY_LENGTH);
-            final Part part = new Part(offset, length);
             final long loaded = dataNode.getObject(KEY_LOADED);
-            part.loaded = loaded;
-            return part;
+            final Long checksum = dataNode.getObject(KEY_CHECKSUM);
+            final Long checksumLength = dataNode.getObject(KEY_CHECKSUM_LENGTH);
+            return restorePart(offset, length, loaded, checksum, checksumLength);
         }
 
     }
@@ -362,6 +526,7 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
         private static final DataKey<Boolean> KEY_DOWNLOADED = DataKey.create("downloaded", Boolean.class);
         private static final DataKey<Date> KEY_DOWNLOADED_AT = DataKey.create("downloaded at", Date.class, null);
         private static final DataKey<String> KEY_TARGET_FILE = DataKey.create("target file", String.class);
+        private static final DataKey<Long> KEY_CHECKSUM = DataKey.create("checksum", Long.class, null);
 
         private static final List<DataMarshaller<?>> REQUIRED_MARSHALLERS = new ArrayList<DataMarshaller<?>>(
                 Arrays.asList(new DataMarshaller<?>[] {
@@ -396,6 +561,10 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
             dataNode.setObject(KEY_DOWNLOADED, download.isDownloaded());
             dataNode.setObject(KEY_DOWNLOADED_AT, download.getDownloadedAt());
             dataNode.setObject(KEY_TARGET_FILE, download.getTargetFile().toString());
+            final Crc32 checksum = download.getChecksum();
+            if (checksum != null) {
+                dataNode.setObject(KEY_CHECKSUM, checksum.getValue());
+            }
             return dataNode;
         }
 
@@ -410,15 +579,68 @@ public class Download extends AbstractUpdateable<Download> implements Storable<D
             final boolean downloaded = node.getMandatoryObject(KEY_DOWNLOADED);
             final Date downloadedAt = node.getObject(KEY_DOWNLOADED_AT);
             final File targetFile = new File(node.getMandatoryObject(KEY_TARGET_FILE));
-            Download download = new Download(id, priority, recordingId, quality, targetFile);
-            download.totalBytes = totalBytes;
+            final Long checksum = node.getObject(KEY_CHECKSUM);
+            return restoreDownload(id, recordingId, totalBytes, priority, quality,
+                    parts, downloaded, downloadedAt, targetFile, checksum);
+        }
+
+    }
+
+    public static class DownloadCodec implements RecordCodec<Download> {
+
+        @Override
+        public void write(Download download, RecordWriter out) throws IOException {
+            out.writeInt(download.getId());
+            out.writeInt(download.getRecordingId());
+            out.writeLong(download.getTotalBytes());
+            out.writeInt(download.getPriority());
+            out.writeString(download.quality.name());
+
+            final List<Part> parts = new ArrayList<Part>(download.parts);
+            out.writeInt(parts.size());
             for (Part part : parts) {
-                download.parts.add(part);
-                part.addListener(download);
+                //the checksum is read before the loaded bytes so it never covers
+                //more than the stored loaded bytes
+                final Crc32 checksum = part.checksum;
+                out.writeLong(part.offset);
+                out.writeLong(part.length);
+                out.writeLong(part.loaded);
+                out.writeNullableLong(checksum == null ? null : checksum.getValue());
+                out.writeNullableLong(checksum == null ? null : checksum.getLength());
             }
-            download.downloaded = downloaded;
-            download.downloadedAt = downloadedAt;
-            return download;
+
+            out.writeBoolean(download.isDownloaded());
+            out.writeDate(download.getDownloadedAt());
+            out.writeString(download.getTargetFile().toString());
+            final Crc32 checksum = download.getChecksum();
+            out.writeNullableLong(checksum == null ? null : checksum.getValue());
+        }
+
+        @Override
+        public Download read(RecordReader in) throws IOException {
+            final int id = in.readInt();
+            final int recordingId = in.readInt();
+            final long totalBytes = in.readLong();
+            final int priority = in.readInt();
+            final Quality quality = Quality.valueOf(in.readString());
+
+            final int partCount = in.readInt();
+            final List<Part> parts = new ArrayList<Part>(partCount);
+            for (int i = 0; i < partCount; ++i) {
+                final long offset = in.readLong();
+                final long length = in.readLong();
+                final long loaded = in.readLong();
+                final Long checksum = in.readNullableLong();
+                final Long checksumLength = in.readNullableLong();
+                parts.add(restorePart(offset, length, loaded, checksum, checksumLength));
+            }
+
+            final boolean downloaded = in.readBoolean();
+            final Date downloadedAt = in.readDate();
+            final File targetFile = new File(in.readString());
+            final Long checksum = in.readNullableLong();
+            return restoreDownload(id, recordingId, totalBytes, priority, quality,
+                    parts, downloaded, downloadedAt, targetFile, checksum);
         }
 
     }
@@ -0,0 +1,198 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.model;
+
+import de.darkblue.bongloader2.model.ArchivedDownload.ArchivedDownloadCodec;
+import de.darkblue.bongloader2.model.data.ArchiveList;
+import de.darkblue.bongloader2.model.data.Callback;
+import de.darkblue.bongloader2.model.data.ListIndex;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The history of all finished downloads that were moved out of the
+ * download list. The archive is only read when it is queried for the
+ * first time and can be searched by recording, date and title.
+ *
+ * @author Florian Frankenberger
+ */
+public class DownloadArchive {
+
+    private static final Comparator<ArchivedDownload> NEWEST_FIRST_COMPARATOR = new Comparator<ArchivedDownload>() {
+
+        @Override
+        public int compare(ArchivedDownload o1, ArchivedDownload o2) {
+            return o2.getDownloadedAt().compareTo(o1.getDownloadedAt());
+        }
+
+    };
+
+    private final ArchiveList<ArchivedDownload> archiveList;
+    private final ListIndex<Integer, ArchivedDownload> downloadsByRecording;
+    private final ListIndex<Long, ArchivedDownload> downloadsByDate;
+    private final ListIndex<String, ArchivedDownload> downloadsByTitle;
+
+    public DownloadArchive(File file) {
+        this.archiveList = new ArchiveList<ArchivedDownload>(file, new ArchivedDownloadCodec());
+        this.downloadsByRecording = archiveList.addIndex(new Callback<Integer, ArchivedDownload>() {
+            @Override
+            public Integer call(ArchivedDownload value) {
+                return value.getRecordingId();
+            }
+        });
+        this.downloadsByDate = archiveList.addSortedIndex(new Callback<Long, ArchivedDownload>() {
+            @Override
+            public Long call(ArchivedDownload value) {
+                return value.getDownloadedAt().getTime();
+            }
+        });
+        this.downloadsByTitle = archiveList.addIndex(new Callback<String, ArchivedDownload>() {
+            @Override
+            public String call(ArchivedDownload value) {
+                return normalizeTitle(value.getTitle());
+            }
+        });
+    }
+
+    /**
+     * adds the downloads to the archive. When this method returns the
+     * downloads are stored on the disk, so they can be removed from
+     * the download list.
+     *
+     * @param downloads
+     * @throws IOException
+     */
+    public void archive(Collection<ArchivedDownload> downloads) throws IOException {
+        archiveList.append(downloads);
+    }
+
+    public int getSize() {
+        return archiveList.getSize();
+    }
+
+    public List<ArchivedDownload> getByRecording(int recordingId) {
+        archiveList.load();
+        return sorted(downloadsByRecording.get(recordingId));
+    }
+
+    /**
+     * returns all downloads that were finished in the given period
+     *
+     * @param from the earliest date or null
+     * @param to the first date that is not included or null
+     * @return
+     */
+    public List<ArchivedDownload> getDownloadedBetween(Date from, Date to) {
+        archiveList.load();
+        return sorted(downloadsByDate.getRange(
+                from == null ? null : from.getTime(),
+                to == null ? null : to.getTime()));
+    }
+
+    /**
+     * returns all downloads whose title contains the given text
+     * (ignoring the case)
+     *
+     * @param text
+     * @return
+     */
+    public List<ArchivedDownload> findByTitle(String text) {
+        archiveList.load();
+        final String normalizedText = normalizeTitle(text);
+        final List<ArchivedDownload> result = new ArrayList<ArchivedDownload>();
+        for (String title : downloadsByTitle.getKeys()) {
+            if (title.contains(normalizedText)) {
+                result.addAll(downloadsByTitle.get(title));
+            }
+        }
+        return sorted(result);
+    }
+
+    /**
+     * returns all downloads that match all of the given criteria, the
+     * newest first. A criterion that is null is ignored.
+     *
+     * @param recordingId
+     * @param title a part of the title
+     * @param from the earliest date
+     * @param to the first date that is not included
+     * @return
+     */
+    public List<ArchivedDownload> find(Integer recordingId, String title, Date from, Date to) {
+        final List<ArchivedDownload> candidates;
+        if (recordingId != null) {
+            candidates = getByRecording(recordingId);
+        } else if (title != null) {
+            candidates = findByTitle(title);
+        } else {
+            return getDownloadedBetween(from, to);
+        }
+
+        final String normalizedTitle = title == null ? null : normalizeTitle(title);
+        final List<ArchivedDownload> result = new ArrayList<ArchivedDownload>();
+        for (ArchivedDownload download : candidates) {
+            if ((normalizedTitle == null || normalizeTitle(download.getTitle()).contains(normalizedTitle))
+                    && (from == null || !download.getDownloadedAt().before(from))
+                    && (to == null || download.getDownloadedAt().before(to))) {
+                result.add(download);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * returns all downloads whose title contains the given text or - if
+     * the text is a number - that belong to the recording with this id,
+     * the newest first. Numbers are matched both ways because titles can
+     * be numbers too.
+     *
+     * @param text the text to search for - empty to find all downloads
+     * @param from the earliest date
+     * @param to the first date that is not included
+     * @return
+     */
+    public List<ArchivedDownload> search(String text, Date from, Date to) {
+        if (text.trim().isEmpty()) {
+            return find(null, null, from, to);
+        }
+
+        final Set<ArchivedDownload> result = new LinkedHashSet<ArchivedDownload>(find(null, text, from, to));
+        if (text.trim().matches("-?\\d{1,9}")) {
+            result.addAll(find(Integer.valueOf(text.trim()), null, from, to));
+        }
+        return sorted(new ArrayList<ArchivedDownload>(result));
+    }
+
+    private static List<ArchivedDownload> sorted(List<ArchivedDownload> downloads) {
+        Collections.sort(downloads, NEWEST_FIRST_COMPARATOR);
+        return downloads;
+    }
+
+    private static String normalizeTitle(String title) {
+        return title == null ? "" : title.trim().toLowerCase(Locale.ROOT);
+    }
+
+}
@@ -16,6 +16,8 @@
  */
 package de.darkblue.bongloader2.model;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.moebiusgames.xdata.DataKey;
 import com.moebiusgames.xdata.DataMarshaller;
 import com.moebiusgames.xdata.DataNode;
@@ -23,8 +25,14 @@ import com.moebiusgames.xdata.ListDataKey;
 import java.io.Serializable;
 import de.darkblue.bongloader2.model.Recording.MovieFile.Quality;
 import de.darkblue.bongloader2.model.data.AbstractUpdateable;
+import de.darkblue.bongloader2.model.data.RecordCodec;
+import de.darkblue.bongloader2.model.data.RecordReader;
+import de.darkblue.bongloader2.model.data.RecordWriter;
 import de.darkblue.bongloader2.model.data.Storable;
+import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -68,25 +76,33 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
             }
         }
 
-        private URL downloadUrl;
+        /**
+         * the url as text - it is only parsed when it is needed
+         */
+        private String location;
         private Quality quality;
         private boolean autoEnqueued = false;
         private boolean autoDownloaded = false;
 
+        /**
+         * only set while the xml file of an old version is imported
+         */
+        private URL downloadUrl;
+
         public MovieFile() {
         }
 
         public MovieFile(URL downloadUrl, Quality quality) {
-            this.downloadUrl = downloadUrl;
+            this.location = toExternalForm(downloadUrl);
             this.quality = quality;
         }
 
         public URL getDownloadUrl() {
-            return downloadUrl;
+            return toURL(location);
         }
 
         public void setDownloadUrl(URL downloadUrl) {
-            this.downloadUrl = downloadUrl;
+            this.location = toExternalForm(downloadUrl);
         }
 
         public boolean isAutoEnqueued() {
@@ -113,6 +129,14 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
             this.quality = quality;
         }
 
+        private Object readResolve() {
+            if (this.downloadUrl != null) {
+                this.location = toExternalForm(this.downloadUrl);
+                this.downloadUrl = null;
+            }
+            return this;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (obj == null) {
@@ -122,7 +146,7 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
                 return false;
             }
             final MovieFile other = (MovieFile) obj;
-            if (this.downloadUrl != other.downloadUrl && (this.downloadUrl == null || !this.downloadUrl.equals(other.downloadUrl))) {
+            if (!equal(this.location, other.location)) {
                 return false;
             }
             if (this.quality != other.quality) {
@@ -134,43 +158,92 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
         @Override
         public int hashCode() {
             int hash = 5;
-            hash = 53 * hash + (this.downloadUrl != null ? this.downloadUrl.hashCode() : 0);
+            hash = 53 * hash + (this.location != null ? this.location.hashCode() : 0);
             hash = 53 * hash + (this.quality != null ? this.quality.hashCode() : 0);
             return hash;
         }
 
 
     }
+
+    /**
+     * the value of a series field that is not known
+     */
+    private static final int NO_NUMBER = Integer.MIN_VALUE;
+
+    /**
+     * the value of a time that is not known
+     */
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final Quality[] QUALITIES = Quality.values();
+
+    /**
+     * channels, genres, accounts and the titles of series are the same
+     * for many recordings, so only one copy of each is kept
+     */
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
     private int id;
+    private int remoteId;
+    private String account = "";
     private String title;
     private String subtitle;
     private String description;
+
+    /**
+     * the encoded description as loaded from disk - it is only decoded
+     * when it is needed
+     */
+    private transient byte[] encodedDescription;
     private String genre;
+    private int seriesSeasonValue = NO_NUMBER;
+    private int seriesCountValue = NO_NUMBER;
+    private int seriesNumberValue = NO_NUMBER;
+    private String channel;
+    private long startTime = NO_TIME;
+    private long firstSeenTime = System.currentTimeMillis();
+    private long duration;
+
+    /**
+     * the thumbnail url as text - it is only parsed when it is needed
+     */
+    private String thumbLocation;
+    private boolean markedDeleted = false;
+
+    /**
+     * the movie files by the ordinal of their quality
+     */
+    private MovieFile[] movieFiles = new MovieFile[QUALITIES.length];
+
+    /*
+     * the fields of the xml files of old versions. They are only set while
+     * such a file is imported and are moved to the fields above by readResolve.
+     */
+    private Date start;
+    private Date firstSeen;
     private Integer seriesSeason;
     private Integer seriesCount;
     private Integer seriesNumber;
-    private String channel;
-    private Date start;
-    private Date firstSeen = new Date();
-    private long duration;
     private URL thumbUrl;
-    private boolean markedDeleted = false;
-    private Map<Quality, MovieFile> files = new EnumMap<Quality, MovieFile>(Quality.class);
+    private Map<Quality, MovieFile> files;
 
     public String getChannel() {
         return channel;
     }
 
     public void setChannel(String channel) {
-        this.channel = channel;
+        this.channel = intern(channel);
     }
 
     public String getDescription() {
-        return description;
+        final byte[] encoded = this.encodedDescription;
+        return encoded != null ? new String(encoded, UTF8) : description;
     }
 
     public void setDescription(String description) {
         this.description = description;
+        this.encodedDescription = null;
     }
 
     public long getDuration() {
@@ -206,49 +279,77 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
         this.id = id;
     }
 
+    /**
+     * the id of this recording on the server. Only recordings of the primary
+     * account use it as their id as well.
+     *
+     * @return
+     */
+    public int getRemoteId() {
+        return remoteId;
+    }
+
+    public void setRemoteId(int remoteId) {
+        this.remoteId = remoteId;
+    }
+
+    /**
+     * the name of the account this recording belongs to ("" for the
+     * primary account)
+     *
+     * @return
+     */
+    public String getAccount() {
+        return account;
+    }
+
+    public void setAccount(String account) {
+        this.account = intern(account);
+    }
+
     public String getGenre() {
         return genre;
     }
 
     public void setGenre(String genre) {
-        this.genre = genre;
+        this.genre = intern(genre);
     }
 
     public Integer getSeriesCount() {
-        return seriesCount;
+        return toInteger(seriesCountValue);
     }
 
     public void setSeriesCount(Integer seriesCount) {
-        this.seriesCount = seriesCount;
+        this.seriesCountValue = toNumber(seriesCount);
     }
 
     public Integer getSeriesNumber() {
-        return seriesNumber;
+        return toInteger(seriesNumberValue);
     }
 
     public void setSeriesNumber(Integer seriesNumber) {
-        this.seriesNumber = seriesNumber;
+        this.seriesNumberValue = toNumber(seriesNumber);
     }
 
     public Integer getSeriesSeason() {
-        return seriesSeason;
+        return toInteger(seriesSeasonValue);
     }
 
     public void setSeriesSeason(Integer seriesSeason) {
-        this.seriesSeason = seriesSeason;
+        this.seriesSeasonValue = toNumber(seriesSeason);
     }
 
     public boolean isSeries() {
-        return this.getSeriesNumber() != null
-                && this.getSeriesSeason() != null;
+        return this.seriesNumberValue != NO_NUMBER
+                && this.seriesSeasonValue != NO_NUMBER;
     }
 
     public Date getStart() {
-        return start;
+        return toDate(startTime);
     }
 
     public void setStart(Date start) {
-        this.start = start;
+        this.startTime = toTime(start);
     }
 
     public String getSubtitle() {
@@ -260,11 +361,21 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
     }
 
     public URL getThumbUrl() {
-        return thumbUrl;
+        return toURL(thumbLocation);
+    }
+
+    /**
+     * the thumbnail url as text, which is cheaper than getThumbUrl
+     * if the url is only compared
+     *
+     * @return
+     */
+    public String getThumbLocation() {
+        return thumbLocation;
     }
 
     public void setThumbUrl(URL thumbUrl) {
-        this.thumbUrl = thumbUrl;
+        this.thumbLocation = toExternalForm(thumbUrl);
     }
 
     public String getTitle() {
@@ -272,56 +383,185 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
     }
 
     public void setTitle(String title) {
-        this.title = title;
+        this.title = intern(title);
     }
 
     public Date getFirstSeen() {
-        return firstSeen;
+        return toDate(firstSeenTime);
     }
 
     public void addFileURL(Quality quality, MovieFile movieFile) {
-        this.files.put(quality, movieFile);
+        this.movieFiles[quality.ordinal()] = movieFile;
     }
 
     public Set<Quality> getMovieFileQualities() {
-        return this.files.keySet();
+        final Set<Quality> qualities = EnumSet.noneOf(Quality.class);
+        for (MovieFile movieFile : getAllMovieFiles()) {
+            qualities.add(movieFile.getQuality());
+        }
+        return qualities;
     }
 
     public boolean hasMovieFile(Quality quality) {
-        return this.files.containsKey(quality) && this.getMovieFile(quality) != null;
+        return this.getMovieFile(quality) != null;
     }
 
     public MovieFile getMovieFile(Quality quality) {
-        return this.files.get(quality);
+        return this.movieFiles[quality.ordinal()];
     }
 
     public Collection<MovieFile> getAllMovieFiles() {
-        return this.files.values();
+        final List<MovieFile> result = new ArrayList<MovieFile>(QUALITIES.length);
+        for (MovieFile movieFile : this.movieFiles) {
+            if (movieFile != null) {
+                result.add(movieFile);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * compares the descriptions without decoding the stored one: the
+     * description of a polled recording is encoded instead (once per poll)
+     */
+    private boolean hasSameDescription(Recording other) {
+        final byte[] encoded = this.encodedDescription;
+        if (encoded == null) {
+            return equal(this.description, other.getDescription());
+        }
+        final byte[] otherEncoded = other.encodedDescription;
+        if (otherEncoded != null) {
+            return Arrays.equals(encoded, otherEncoded);
+        }
+        return other.description != null && Arrays.equals(encoded, other.description.getBytes(UTF8));
     }
 
     @Override
-    public void update(Recording newRecording) {
-        this.title = newRecording.getTitle();
-        this.subtitle = newRecording.getSubtitle();
-        this.channel = newRecording.getChannel();
-        this.description = newRecording.getDescription();
-        this.start = newRecording.getStart();
-        this.duration = newRecording.getDuration();
-        this.thumbUrl = newRecording.getThumbUrl();
-
-        this.seriesCount = newRecording.getSeriesCount();
-        this.seriesNumber = newRecording.getSeriesNumber();
-        this.seriesSeason = newRecording.getSeriesSeason();
-
-        if (this.getFirstSeen() == null || this.getFirstSeen().after(newRecording.getFirstSeen())) {
-            this.firstSeen = newRecording.getFirstSeen();
-        }
-
-        for (Entry<Quality, MovieFile> file : newRecording.files.entrySet()) {
-            if (!this.hasMovieFile(file.getKey()) || this.getMovieFile(file.getKey()) == null) {
-                this.files.put(file.getKey(), file.getValue());
+    public boolean update(Recording newRecording) {
+        boolean changed = false;
+        if (!equal(this.title, newRecording.getTitle())) {
+            this.title = newRecording.getTitle();
+            changed = true;
+        }
+        if (!equal(this.subtitle, newRecording.getSubtitle())) {
+            this.subtitle = newRecording.getSubtitle();
+            changed = true;
+        }
+        if (!equal(this.channel, newRecording.getChannel())) {
+            this.channel = newRecording.getChannel();
+            changed = true;
+        }
+        //an unchanged description stays encoded
+        if (!hasSameDescription(newRecording)) {
+            this.description = newRecording.description;
+            this.encodedDescription = newRecording.encodedDescription;
+            changed = true;
+        }
+        if (this.startTime != newRecording.startTime) {
+            this.startTime = newRecording.startTime;
+            changed = true;
+        }
+        if (this.duration != newRecording.getDuration()) {
+            this.duration = newRecording.getDuration();
+            changed = true;
+        }
+        if (!equal(this.thumbLocation, newRecording.thumbLocation)) {
+            this.thumbLocation = newRecording.thumbLocation;
+            changed = true;
+        }
+
+        if (this.seriesCountValue != newRecording.seriesCountValue
+                || this.seriesNumberValue != newRecording.seriesNumberValue
+                || this.seriesSeasonValue != newRecording.seriesSeasonValue) {
+            this.seriesCountValue = newRecording.seriesCountValue;
+            this.seriesNumberValue = newRecording.seriesNumberValue;
+            this.seriesSeasonValue = newRecording.seriesSeasonValue;
+            changed = true;
+        }
+
+        if (newRecording.firstSeenTime != NO_TIME
+                && (this.firstSeenTime == NO_TIME || this.firstSeenTime > newRecording.firstSeenTime)) {
+            this.firstSeenTime = newRecording.firstSeenTime;
+            changed = true;
+        }
+
+        for (int i = 0; i < QUALITIES.length; ++i) {
+            if (this.movieFiles[i] == null && newRecording.movieFiles[i] != null) {
+                this.movieFiles[i] = newRecording.movieFiles[i];
+                changed = true;
             }
         }
+        return changed;
+    }
+
+    private Object readResolve() {
+        if (this.files != null) {
+            //imported from the xml file of an old version
+            this.startTime = toTime(this.start);
+            this.firstSeenTime = toTime(this.firstSeen);
+            this.seriesSeasonValue = toNumber(this.seriesSeason);
+            this.seriesCountValue = toNumber(this.seriesCount);
+            this.seriesNumberValue = toNumber(this.seriesNumber);
+            this.thumbLocation = toExternalForm(this.thumbUrl);
+            this.movieFiles = new MovieFile[QUALITIES.length];
+            for (Entry<Quality, MovieFile> file : this.files.entrySet()) {
+                this.movieFiles[file.getKey().ordinal()] = file.getValue();
+            }
+            this.title = intern(this.title);
+            this.channel = intern(this.channel);
+            this.genre = intern(this.genre);
+            this.account = intern(this.account == null ? "" : this.account);
+
+            this.start = null;
+            this.firstSeen = null;
+            this.seriesSeason = null;
+            this.seriesCount = null;
+            this.seriesNumber = null;
+            this.thumbUrl = null;
+            this.files = null;
+        }
+        return this;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : STRINGS.intern(value);
+    }
+
+    private static Integer toInteger(int number) {
+        return number == NO_NUMBER ? null : Integer.valueOf(number);
+    }
+
+    private static int toNumber(Integer number) {
+        return number == null ? NO_NUMBER : number;
+    }
+
+    private static Date toDate(long time) {
+        return time == NO_TIME ? null : new Date(time);
+    }
+
+    private static long toTime(Date date) {
+        return date == null ? NO_TIME : date.getTime();
+    }
+
+    /**
+     * urls are kept as text: URL objects are big, and URL.equals resolves
+     * the host names
+     */
+    private static String toExternalForm(URL url) {
+        return url == null ? null : url.toExternalForm();
+    }
+
+    private static URL toURL(String location) {
+        try {
+            return location == null ? null : new URL(location);
+        } catch (MalformedURLException e) {
+            //it was a valid url when it was stored
+            throw new IllegalStateException("Invalid url " + location, e);
+        }
     }
 
     @Override
@@ -348,9 +588,11 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
 
     @Override
     public String toString() {
-        return "Recording{" + "id=" + id + ", title=" + title + ", channel=" + channel + ", start=" + start + '}';
+        return "Recording{" + "id=" + id + ", title=" + title + ", channel=" + channel + ", start=" + getStart() + '}';
     }
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     public static class MovieFileMarhsaller implements DataMarshaller<MovieFile> {
 
         private static final DataKey<URL> KEY_DOWNLOAD_URL = DataKey.create("download url", URL.class);
@@ -398,6 +640,8 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
     public static class RecordingMarshaller implements DataMarshaller<Recording> {
 
         private static final DataKey<Integer> KEY_ID = DataKey.create("id", Integer.class);
+        private static final DataKey<Integer> KEY_REMOTE_ID = DataKey.create("remote id", Integer.class);
+        private static final DataKey<String> KEY_ACCOUNT = DataKey.create("account", String.class, "");
         private static final DataKey<String> KEY_TITLE = DataKey.create("title", String.class, "");
         private static final DataKey<String> KEY_SUBTITLE = DataKey.create("subtitle", String.class, "");
         private static final DataKey<String> KEY_DESCRIPTION = DataKey.create("description", String.class, "");
@@ -438,6 +682,8 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
         public DataNode marshal(Recording recording) {
             DataNode node = new DataNode();
             node.setObject(KEY_ID, recording.getId());
+            node.setObject(KEY_REMOTE_ID, recording.getRemoteId());
+            node.setObject(KEY_ACCOUNT, recording.getAccount());
             node.setObject(KEY_TITLE, recording.getTitle());
             node.setObject(KEY_SUBTITLE, recording.getSubtitle());
             node.setObject(KEY_DESCRIPTION, recording.getDescription());
@@ -451,7 +697,7 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
             node.setObject(KEY_DURATION, recording.getDuration());
             node.setObject(KEY_THUMB_URL, recording.getThumbUrl());
             node.setObject(KEY_MARKED_DELETED, recording.markedDeleted());
-            node.setObjectList(KEY_MOVIE_FILES, new ArrayList<MovieFile>(recording.files.values()));
+            node.setObjectList(KEY_MOVIE_FILES, new ArrayList<MovieFile>(recording.getAllMovieFiles()));
             return node;
         }
 
@@ -459,6 +705,10 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
         public Recording unMarshal(DataNode node) {
             Recording recording = new Recording();
             recording.setId(node.getMandatoryObject(KEY_ID));
+            //recordings stored before there were several accounts use the remote id as id
+            final Integer remoteId = node.getObject(KEY_REMOTE_ID);
+            recording.setRemoteId(remoteId == null ? recording.getId() : remoteId);
+            recording.setAccount(node.getObject(KEY_ACCOUNT));
             recording.setTitle(node.getObject(KEY_TITLE));
             recording.setSubtitle(node.getObject(KEY_SUBTITLE));
             recording.setDescription(node.getObject(KEY_DESCRIPTION));
@@ -468,7 +718,7 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
             recording.setSeriesNumber(node.getObject(KEY_SERIES_NUMBER));
             recording.setChannel(node.getObject(KEY_CHANNEL));
             recording.setStart(node.getObject(KEY_START));
-            recording.firstSeen = node.getObject(KEY_FIRST_SEEN);
+            recording.firstSeenTime = toTime(node.getObject(KEY_FIRST_SEEN));
             recording.setDuration(node.getObject(KEY_DURATION));
             recording.setThumbUrl(node.getObject(KEY_THUMB_URL));
             recording.markedDeleted = node.getObject(KEY_MARKED_DELETED);
@@ -483,4 +733,83 @@ public class Recording extends AbstractUpdateable<Recording> implements Storable
 
     }
 
+    public static class RecordingCodec implements RecordCodec<Recording> {
+
+        @Override
+        public void write(Recording recording, RecordWriter out) throws IOException {
+            out.writeInt(recording.getId());
+            out.writeInt(recording.getRemoteId());
+            out.writeString(recording.getAccount());
+            out.writeString(recording.getTitle());
+            out.writeString(recording.getSubtitle());
+            final byte[] encodedDescription = recording.encodedDescription;
+            out.writeText(encodedDescription != null || recording.description == null
+                    ? encodedDescription
+                    : recording.description.getBytes(UTF8));
+            out.writeString(recording.getGenre());
+            out.writeNullableInt(recording.getSeriesSeason());
+            out.writeNullableInt(recording.getSeriesCount());
+            out.writeNullableInt(recording.getSeriesNumber());
+            out.writeString(recording.getChannel());
+            out.writeNullableLong(toNullableTime(recording.startTime));
+            out.writeNullableLong(toNullableTime(recording.firstSeenTime));
+            out.writeLong(recording.getDuration());
+            out.writeString(recording.thumbLocation);
+            out.writeBoolean(recording.markedDeleted());
+
+            final Collection<MovieFile> movieFiles = recording.getAllMovieFiles();
+            out.writeInt(movieFiles.size());
+            for (MovieFile movieFile : movieFiles) {
+                out.writeString(movieFile.getQuality().name());
+                out.writeString(movieFile.location);
+                out.writeBoolean(movieFile.autoEnqueued);
+                out.writeBoolean(movieFile.autoDownloaded);
+            }
+        }
+
+        @Override
+        public Recording read(RecordReader in) throws IOException {
+            Recording recording = new Recording();
+            recording.setId(in.readInt());
+            recording.setRemoteId(in.readInt());
+            recording.setAccount(in.readString());
+            recording.setTitle(in.readString());
+            recording.setSubtitle(in.readString());
+            recording.encodedDescription = in.readText();
+            recording.setGenre(in.readString());
+            recording.setSeriesSeason(in.readNullableInt());
+            recording.setSeriesCount(in.readNullableInt());
+            recording.setSeriesNumber(in.readNullableInt());
+            recording.setChannel(in.readString());
+            recording.startTime = fromNullableTime(in.readNullableLong());
+            recording.firstSeenTime = fromNullableTime(in.readNullableLong());
+            recording.setDuration(in.readLong());
+            //the urls are only parsed when they are needed
+            recording.thumbLocation = in.readString();
+            recording.markedDeleted = in.readBoolean();
+
+            final int movieFileCount = in.readInt();
+            for (int i = 0; i < movieFileCount; ++i) {
+                final Quality quality = Quality.valueOf(in.readString());
+                final MovieFile movieFile = new MovieFile();
+                movieFile.quality = quality;
+                movieFile.location = in.readString();
+                movieFile.autoEnqueued = in.readBoolean();
+                movieFile.autoDownloaded = in.readBoolean();
+                recording.addFileURL(quality, movieFile);
+            }
+
+            return recording;
+        }
+
+        private static Long toNullableTime(long time) {
+            return time == NO_TIME ? null : time;
+        }
+
+        private static long fromNullableTime(Long time) {
+            return time == null ? NO_TIME : time;
+        }
+
+    }
+
 }
@@ -0,0 +1,347 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.model.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * An append-only list of items that are not changed anymore. The items
+ * are written in compressed blocks, one block per append, and are only
+ * read when the list is queried for the first time. Like a StorableList
+ * the archive can have secondary indexes.
+ * <p>
+ * An item that is appended twice (equal by equals) is only kept once. A
+ * block that was not completely written (e.g. because of a crash) at the
+ * end of the file is ignored and overwritten by the next append, a broken
+ * block in the middle of the file is skipped.
+ *
+ * @author Florian Frankenberger
+ * @param <T>
+ */
+public class ArchiveList<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(ArchiveList.class.getCanonicalName());
+
+    private static final int BLOCK_MAGIC = 0x424C4152; //BLAR
+    private static final int VERSION = 1;
+
+    /**
+     * magic, version, record count, uncompressed and compressed length
+     */
+    private static final int BLOCK_HEADER_SIZE = 5 * 4;
+
+    private final File file;
+    private final RecordCodec<T> codec;
+
+    private final Set<T> items = new LinkedHashSet<T>();
+    private final List<ListIndex<?, T>> indexes = new ArrayList<ListIndex<?, T>>();
+    private boolean loaded = false;
+
+    /**
+     * the end of the last complete block or -1 if the file was not read yet
+     */
+    private long validLength = -1;
+
+    public ArchiveList(File file, RecordCodec<T> codec) {
+        this.file = file;
+        this.codec = codec;
+    }
+
+    /**
+     * creates an index of all items by the key the extractor returns
+     *
+     * @param <K>
+     * @param keyExtractor
+     * @return
+     * @see StorableList#addIndex(Callback)
+     */
+    public final synchronized <K> ListIndex<K, T> addIndex(Callback<K, T> keyExtractor) {
+        return registerIndex(new ListIndex<K, T>(this, keyExtractor, false));
+    }
+
+    /**
+     * like addIndex but the keys are kept sorted, so ranges of keys
+     * can be queried
+     *
+     * @param <K>
+     * @param keyExtractor
+     * @return
+     */
+    public final synchronized <K extends Comparable<? super K>> ListIndex<K, T> addSortedIndex(Callback<K, T> keyExtractor) {
+        return registerIndex(new ListIndex<K, T>(this, keyExtractor, true));
+    }
+
+    private <K> ListIndex<K, T> registerIndex(ListIndex<K, T> index) {
+        for (T item : this.items) {
+            index.add(item);
+        }
+        this.indexes.add(index);
+        return index;
+    }
+
+    /**
+     * reads the archive if this was not done yet. The indexes are only
+     * filled after the archive has been loaded.
+     */
+    public synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        final long start = System.currentTimeMillis();
+        try {
+            validLength = readBlocks(true);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not read archive " + file, e);
+        }
+        LOGGER.log(Level.INFO, "Loaded {0} archived items in {1}ms", new Object[] {items.size(), System.currentTimeMillis() - start});
+    }
+
+    public synchronized List<T> getAll() {
+        load();
+        return new ArrayList<T>(this.items);
+    }
+
+    public synchronized int getSize() {
+        load();
+        return this.items.size();
+    }
+
+    /**
+     * writes the items to the end of the archive. When this method
+     * returns the items are on the disk.
+     *
+     * @param newItems
+     * @throws IOException
+     */
+    public synchronized void append(Collection<T> newItems) throws IOException {
+        if (newItems.isEmpty()) {
+            return;
+        }
+
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final RecordWriter recordWriter = new RecordWriter(records, false);
+        for (T item : newItems) {
+            codec.write(item, recordWriter);
+        }
+        recordWriter.flush();
+
+        final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        final DataOutputStream blockOut = new DataOutputStream(block);
+        blockOut.writeInt(BLOCK_MAGIC);
+        blockOut.writeInt(VERSION);
+        blockOut.writeInt(newItems.size());
+        blockOut.writeInt(records.size());
+        final byte[] compressed = compress(records.toByteArray());
+        blockOut.writeInt(compressed.length);
+        blockOut.write(compressed);
+        blockOut.flush();
+
+        if (validLength < 0) {
+            validLength = readBlocks(false);
+        }
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            //cut off what is left of a broken block at the end
+            randomAccessFile.setLength(validLength);
+            randomAccessFile.seek(validLength);
+            randomAccessFile.write(block.toByteArray());
+            randomAccessFile.getChannel().force(true);
+        } finally {
+            randomAccessFile.close();
+        }
+        validLength += block.size();
+
+        if (loaded) {
+            for (T item : newItems) {
+                addItem(item);
+            }
+        }
+    }
+
+    private void addItem(T item) {
+        if (this.items.add(item)) {
+            for (ListIndex<?, T> index : this.indexes) {
+                index.add(item);
+            }
+        }
+    }
+
+    /**
+     * reads all blocks of the file. A block with a broken header is
+     * skipped up to the next valid block, so a corruption in the middle of
+     * the file doesn't hide (and the next append doesn't cut off) the
+     * blocks behind it.
+     *
+     * @param decode true if the items should be read, false if only the
+     *               size of the file should be determined
+     * @return the end of the last complete block
+     * @throws IOException
+     */
+    private long readBlocks(boolean decode) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final long length = randomAccessFile.length();
+            long position = 0;
+            while (position + BLOCK_HEADER_SIZE <= length) {
+                if (readCompressedLength(randomAccessFile, position, length) < 0) {
+                    final long nextBlock = findNextBlock(randomAccessFile, position + 1, length);
+                    if (nextBlock < 0) {
+                        break;
+                    }
+                    LOGGER.log(Level.WARNING, "Skipped {0} broken bytes at {1} of {2}",
+                            new Object[] {nextBlock - position, position, file});
+                    position = nextBlock;
+                }
+
+                final int compressedLength = readCompressedLength(randomAccessFile, position, length);
+                if (decode) {
+                    randomAccessFile.seek(position + 2 * 4);
+                    final int recordCount = randomAccessFile.readInt();
+                    final int recordsLength = randomAccessFile.readInt();
+                    final byte[] compressed = new byte[compressedLength];
+                    randomAccessFile.seek(position + BLOCK_HEADER_SIZE);
+                    randomAccessFile.readFully(compressed);
+                    try {
+                        final RecordReader recordReader = new RecordReader(
+                                ByteBuffer.wrap(decompress(compressed, recordsLength)), null);
+                        for (int i = 0; i < recordCount; ++i) {
+                            addItem(recordReader.read(codec));
+                        }
+                    } catch (IOException e) {
+                        //the other blocks are still fine
+                        LOGGER.log(Level.WARNING, "Skipped broken block at " + position + " of " + file, e);
+                    }
+                }
+                position += BLOCK_HEADER_SIZE + compressedLength;
+            }
+
+            if (position < length) {
+                LOGGER.log(Level.WARNING, "Ignoring incomplete block at the end of {0}", file);
+            }
+            return position;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * returns the compressed length of the block at the given position or
+     * -1 if there is no complete block with a valid header
+     */
+    private static int readCompressedLength(RandomAccessFile randomAccessFile, long position, long length) throws IOException {
+        if (position + BLOCK_HEADER_SIZE > length) {
+            return -1;
+        }
+        randomAccessFile.seek(position);
+        final int magic = randomAccessFile.readInt();
+        final int version = randomAccessFile.readInt();
+        final int recordCount = randomAccessFile.readInt();
+        final int recordsLength = randomAccessFile.readInt();
+        final int compressedLength = randomAccessFile.readInt();
+        if (magic != BLOCK_MAGIC || version != VERSION
+                || recordCount < 0 || recordsLength < 0 || compressedLength < 0
+                || position + BLOCK_HEADER_SIZE + compressedLength > length) {
+            return -1;
+        }
+        return compressedLength;
+    }
+
+    /**
+     * searches the next complete block with a valid header
+     *
+     * @return its position or -1 if there is none
+     */
+    private static long findNextBlock(RandomAccessFile randomAccessFile, long from, long length) throws IOException {
+        final byte[] buffer = new byte[64 * 1024];
+        long chunkStart = from;
+        while (chunkStart + BLOCK_HEADER_SIZE <= length) {
+            final int count = (int) Math.min(buffer.length, length - chunkStart);
+            randomAccessFile.seek(chunkStart);
+            randomAccessFile.readFully(buffer, 0, count);
+            for (int i = 0; i + 4 <= count; ++i) {
+                final int value = ((buffer[i] & 0xFF) << 24) | ((buffer[i + 1] & 0xFF) << 16)
+                        | ((buffer[i + 2] & 0xFF) << 8) | (buffer[i + 3] & 0xFF);
+                if (value == BLOCK_MAGIC && readCompressedLength(randomAccessFile, chunkStart + i, length) >= 0) {
+                    return chunkStart + i;
+                }
+            }
+            //the magic might span two chunks
+            chunkStart += count - 3;
+        }
+        return -1;
+    }
+
+    private static byte[] compress(byte[] data) throws IOException {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            final DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater);
+            out.write(data);
+            out.finish();
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] compressed, int length) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            final byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                final int count = inflater.inflate(data, offset, length - offset);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += count;
+            }
+            if (offset != length) {
+                throw new IOException("Block is truncated");
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Block is broken", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
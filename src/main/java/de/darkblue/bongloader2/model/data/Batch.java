@@ -0,0 +1,31 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.model.data;
+
+import java.io.Serializable;
+
+/**
+ * A group of changes that is applied to a StorableList at once
+ *
+ * @author Florian Frankenberger
+ * @param <T>
+ */
+public interface Batch<T extends Storable<T> & Serializable> {
+
+    void apply(StorableList<T> list);
+
+}
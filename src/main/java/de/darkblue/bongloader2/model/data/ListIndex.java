@@ -0,0 +1,190 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.model.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A secondary index of a StorableList or an ArchiveList: all items
+ * grouped by a key that is extracted from each item. The index is kept
+ * up to date by the list whenever an item is added, removed or updated.
+ * Indexes with comparable keys can be sorted, so the smallest and largest
+ * key are known without looking at the items.
+ *
+ * @author Florian Frankenberger
+ * @param <K>
+ * @param <T>
+ */
+public class ListIndex<K, T> {
+
+    private final Object lock;
+    private final Callback<K, T> keyExtractor;
+    private final Map<K, Set<T>> itemsByKey;
+    private final Map<T, K> keysByItem = new HashMap<T, K>();
+
+    ListIndex(Object lock, Callback<K, T> keyExtractor, boolean sorted) {
+        this.lock = lock;
+        this.keyExtractor = keyExtractor;
+        this.itemsByKey = sorted ? new TreeMap<K, Set<T>>() : new HashMap<K, Set<T>>();
+    }
+
+    /**
+     * returns all items with the given key
+     *
+     * @param key
+     * @return
+     */
+    public List<T> get(K key) {
+        synchronized (lock) {
+            final Set<T> items = this.itemsByKey.get(key);
+            return items == null ? Collections.<T>emptyList() : new ArrayList<T>(items);
+        }
+    }
+
+    public int count(K key) {
+        synchronized (lock) {
+            final Set<T> items = this.itemsByKey.get(key);
+            return items == null ? 0 : items.size();
+        }
+    }
+
+    public boolean contains(K key) {
+        synchronized (lock) {
+            return this.itemsByKey.containsKey(key);
+        }
+    }
+
+    /**
+     * returns the smallest key of all items (only for sorted indexes)
+     *
+     * @param defaultValue the value to return if the list is empty
+     * @return
+     */
+    public K getMinKey(K defaultValue) {
+        synchronized (lock) {
+            final TreeMap<K, Set<T>> sortedItems = getSortedItems();
+            return sortedItems.isEmpty() ? defaultValue : sortedItems.firstKey();
+        }
+    }
+
+    /**
+     * returns the largest key of all items (only for sorted indexes)
+     *
+     * @param defaultValue the value to return if the list is empty
+     * @return
+     */
+    public K getMaxKey(K defaultValue) {
+        synchronized (lock) {
+            final TreeMap<K, Set<T>> sortedItems = getSortedItems();
+            return sortedItems.isEmpty() ? defaultValue : sortedItems.lastKey();
+        }
+    }
+
+    /**
+     * returns all items with a key from fromKey (inclusive) to toKey
+     * (exclusive) in the order of their keys (only for sorted indexes)
+     *
+     * @param fromKey the smallest key or null for no lower bound
+     * @param toKey the first key not returned or null for no upper bound
+     * @return
+     */
+    public List<T> getRange(K fromKey, K toKey) {
+        synchronized (lock) {
+            SortedMap<K, Set<T>> range = getSortedItems();
+            if (fromKey != null) {
+                range = range.tailMap(fromKey);
+            }
+            if (toKey != null) {
+                range = range.headMap(toKey);
+            }
+            final List<T> result = new ArrayList<T>();
+            for (Set<T> items : range.values()) {
+                result.addAll(items);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * returns all keys that at least one item has
+     *
+     * @return
+     */
+    public List<K> getKeys() {
+        synchronized (lock) {
+            return new ArrayList<K>(this.itemsByKey.keySet());
+        }
+    }
+
+    private TreeMap<K, Set<T>> getSortedItems() {
+        if (!(this.itemsByKey instanceof TreeMap)) {
+            throw new UnsupportedOperationException("Index is not sorted");
+        }
+        return (TreeMap<K, Set<T>>) this.itemsByKey;
+    }
+
+    void add(T item) {
+        final K key = this.keyExtractor.call(item);
+        this.keysByItem.put(item, key);
+        Set<T> items = this.itemsByKey.get(key);
+        if (items == null) {
+            items = new LinkedHashSet<T>();
+            this.itemsByKey.put(key, items);
+        }
+        items.add(item);
+    }
+
+    void remove(T item) {
+        if (!this.keysByItem.containsKey(item)) {
+            return;
+        }
+        final K key = this.keysByItem.remove(item);
+        final Set<T> items = this.itemsByKey.get(key);
+        items.remove(item);
+        if (items.isEmpty()) {
+            this.itemsByKey.remove(key);
+        }
+    }
+
+    /**
+     * moves the item to its new key if it changed
+     *
+     * @param item
+     */
+    void update(T item) {
+        final K oldKey = this.keysByItem.get(item);
+        final K newKey = this.keyExtractor.call(item);
+        if (oldKey == null ? newKey != null : !oldKey.equals(newKey)) {
+            remove(item);
+            add(item);
+        }
+    }
+
+    void clear() {
+        this.itemsByKey.clear();
+        this.keysByItem.clear();
+    }
+
+}
@@ -0,0 +1,63 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.model.data;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * An immutable view of the items of a StorableList at one point in
+ * time. A new snapshot is published whenever items are added, removed
+ * or change their position, so a snapshot can be read and iterated
+ * without locking and without copying. The items themselves are the
+ * live objects of the list.
+ *
+ * @author Florian Frankenberger
+ * @param <T>
+ */
+public final class ListSnapshot<T> extends AbstractList<T> implements RandomAccess {
+
+    private final long version;
+    private final Object[] items;
+
+    ListSnapshot(long version, Object[] items) {
+        this.version = version;
+        this.items = items;
+    }
+
+    /**
+     * the version of the list this snapshot was taken from. It increases
+     * with every published change.
+     *
+     * @return
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        return (T) this.items[index];
+    }
+
+    @Override
+    public int size() {
+        return this.items.length;
+    }
+
+}
@@ -0,0 +1,35 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.model.data;
+
+import java.io.IOException;
+
+/**
+ * Writes items of a StorableList to the binary format and reads
+ * them back. The fields have to be read in the same order they
+ * were written.
+ *
+ * @author Florian Frankenberger
+ * @param <T>
+ */
+public interface RecordCodec<T> {
+
+    void write(T item, RecordWriter out) throws IOException;
+
+    T read(RecordReader in) throws IOException;
+
+}
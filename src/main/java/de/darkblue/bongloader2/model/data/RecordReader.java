@@ -0,0 +1,126 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.model.data;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * Reads the fields of a record written by a RecordWriter
+ *
+ * @author Florian Frankenberger
+ */
+public class RecordReader {
+
+    private final ByteBuffer buffer;
+    private final String[] strings;
+
+    /**
+     * @param buffer
+     * @param strings the string table or null if the strings are inline
+     */
+    RecordReader(ByteBuffer buffer, String[] strings) {
+        this.buffer = buffer;
+        this.strings = strings;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return buffer.get() != 0;
+    }
+
+    public int readInt() throws IOException {
+        return buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        return buffer.getLong();
+    }
+
+    public Integer readNullableInt() throws IOException {
+        return readBoolean() ? readInt() : null;
+    }
+
+    public Long readNullableLong() throws IOException {
+        return readBoolean() ? readLong() : null;
+    }
+
+    public Date readDate() throws IOException {
+        final Long time = readNullableLong();
+        return time == null ? null : new Date(time);
+    }
+
+    public String readString() throws IOException {
+        if (this.strings == null) {
+            final byte[] utf8 = readText();
+            return utf8 == null ? null : new String(utf8, RecordWriter.UTF8);
+        }
+
+        final int index = readInt();
+        if (index == -1) {
+            return null;
+        }
+        if (index < 0 || index >= this.strings.length) {
+            throw new IOException("Invalid string reference " + index);
+        }
+        return this.strings[index];
+    }
+
+    /**
+     * reads a text written with RecordWriter.writeText - it is
+     * returned still encoded, so it can be decoded when needed
+     *
+     * @return
+     * @throws IOException
+     */
+    public byte[] readText() throws IOException {
+        final int length = readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid text length " + length);
+        }
+        final byte[] utf8 = new byte[length];
+        buffer.get(utf8);
+        return utf8;
+    }
+
+    boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * reads a whole record with the given codec
+     *
+     * @param <T>
+     * @param codec
+     * @return
+     * @throws IOException if the record is broken
+     */
+    <T> T read(RecordCodec<T> codec) throws IOException {
+        try {
+            return codec.read(this);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Unexpected end of record", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid record", e);
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.model.data;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the fields of one or more records. Strings are either written
+ * to a string table (so each distinct value is stored and later loaded
+ * only once) or inline if there is no table.
+ *
+ * @author Florian Frankenberger
+ */
+public class RecordWriter {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> stringIndices;
+    private final List<String> strings;
+
+    /**
+     * @param out
+     * @param stringTable true if strings should be collected in a table
+     *                    instead of being written inline
+     */
+    RecordWriter(OutputStream out, boolean stringTable) {
+        this.out = new DataOutputStream(out);
+        this.stringIndices = stringTable ? new HashMap<String, Integer>() : null;
+        this.strings = stringTable ? new ArrayList<String>() : null;
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        out.writeBoolean(value);
+    }
+
+    public void writeInt(int value) throws IOException {
+        out.writeInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        out.writeLong(value);
+    }
+
+    public void writeNullableInt(Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    public void writeNullableLong(Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    public void writeDate(Date date) throws IOException {
+        writeNullableLong(date == null ? null : date.getTime());
+    }
+
+    /**
+     * writes a short string that is likely to occur more than once
+     * (like a channel or an url)
+     *
+     * @param value
+     * @throws IOException
+     */
+    public void writeString(String value) throws IOException {
+        if (this.strings == null) {
+            writeText(value == null ? null : value.getBytes(UTF8));
+            return;
+        }
+
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        Integer index = this.stringIndices.get(value);
+        if (index == null) {
+            index = this.strings.size();
+            this.strings.add(value);
+            this.stringIndices.put(value, index);
+        }
+        out.writeInt(index);
+    }
+
+    /**
+     * writes a longer text (like a description) inline
+     *
+     * @param utf8 the encoded text or null
+     * @throws IOException
+     */
+    public void writeText(byte[] utf8) throws IOException {
+        if (utf8 == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+    }
+
+    int size() {
+        return out.size();
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    List<String> getStrings() {
+        return strings;
+    }
+
+}
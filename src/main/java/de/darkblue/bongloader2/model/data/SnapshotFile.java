@@ -0,0 +1,190 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.model.data;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary snapshot of a StorableList. The file consists of
+ * <ul>
+ * <li>a fixed size header (magic, version, generation, counts and the offset of the string table)</li>
+ * <li>the records as written by the RecordCodec, one after the other</li>
+ * <li>the string table that all records refer to</li>
+ * </ul>
+ * All records are decoded when the snapshot is read, so there is no
+ * index of the single records.
+ * The generation is incremented with every snapshot written. The journal
+ * of a list stores the generation of the snapshot it belongs to, so a
+ * journal of an older snapshot is never replayed onto a newer one.
+ *
+ * @author Florian Frankenberger
+ */
+final class SnapshotFile {
+
+    private static final int MAGIC = 0x424C5354; //BLST
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5 * 4 + 8;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * the items and the generation read from a snapshot file
+     *
+     * @param <T>
+     */
+    static final class Contents<T> {
+
+        final long generation;
+        final List<T> items;
+
+        private Contents(long generation, List<T> items) {
+            this.generation = generation;
+            this.items = items;
+        }
+
+    }
+
+    static <T extends Serializable & Storable<T>> void write(File file, long generation, List<T> items, RecordCodec<T> codec) throws IOException {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final RecordWriter recordWriter = new RecordWriter(records, true);
+        for (T item : items) {
+            codec.write(item, recordWriter);
+        }
+        recordWriter.flush();
+
+        final ByteArrayOutputStream stringTable = new ByteArrayOutputStream();
+        final DataOutputStream stringTableOut = new DataOutputStream(stringTable);
+        final List<String> strings = recordWriter.getStrings();
+        for (String string : strings) {
+            final byte[] utf8 = string.getBytes(RecordWriter.UTF8);
+            stringTableOut.writeInt(utf8.length);
+            stringTableOut.write(utf8);
+        }
+        stringTableOut.flush();
+
+        final long stringTableOffset = (long) HEADER_SIZE + records.size();
+        if (stringTableOffset + stringTable.size() > Integer.MAX_VALUE) {
+            throw new IOException("List too big to be stored");
+        }
+
+        final FileOutputStream fileOut = new FileOutputStream(file);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(items.size());
+            out.writeInt(strings.size());
+            out.writeInt((int) stringTableOffset);
+
+            records.writeTo(out);
+            stringTable.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    static <T> Contents<T> read(File file, RecordCodec<T> codec) throws IOException {
+        final ByteBuffer buffer = readFully(file);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is no list snapshot");
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of " + file);
+            }
+            final long generation = buffer.getLong();
+            final int recordCount = buffer.getInt();
+            final int stringCount = buffer.getInt();
+            final int stringTableOffset = buffer.getInt();
+            if (recordCount < 0 || stringCount < 0
+                    || stringTableOffset < HEADER_SIZE || stringTableOffset > buffer.limit()) {
+                throw new IOException(file + " is truncated or broken");
+            }
+
+            buffer.position(stringTableOffset);
+            final String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; ++i) {
+                final byte[] utf8 = new byte[buffer.getInt()];
+                buffer.get(utf8);
+                strings[i] = new String(utf8, RecordWriter.UTF8);
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException(file + " is truncated or broken");
+            }
+
+            final ByteBuffer records = buffer.duplicate();
+            records.position(HEADER_SIZE);
+            records.limit(stringTableOffset);
+            final RecordReader recordReader = new RecordReader(records.slice(), strings);
+            final List<T> items = new ArrayList<T>(recordCount);
+            for (int i = 0; i < recordCount; ++i) {
+                items.add(recordReader.read(codec));
+            }
+            if (recordReader.hasRemaining()) {
+                throw new IOException(file + " is truncated or broken");
+            }
+            return new Contents<T>(generation, items);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is truncated or broken", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + " is truncated or broken", e);
+        }
+    }
+
+    /**
+     * reads the whole file with a single read. The file is deliberately
+     * not mapped: a mapping keeps the file locked on some platforms until
+     * it is garbage collected, which would prevent replacing the snapshot.
+     */
+    private static ByteBuffer readFully(File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too big");
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+}
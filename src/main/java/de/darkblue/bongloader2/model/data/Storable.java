@@ -37,7 +37,8 @@ public interface Storable<T extends Storable<T> & Serializable> extends Updateab
      * the same id. Updates this with the content of the other
      * item.
      * @param other
+     * @return true if this item actually changed
      */
-    void update(T other);
+    boolean update(T other);
 
 }
@@ -25,13 +25,22 @@ import com.thoughtworks.xstream.XStreamException;
 import com.thoughtworks.xstream.io.xml.DomDriver;
 import de.darkblue.bongloader2.utils.Utils;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * A list that can be saved and loaded
+ * A list that can be saved and loaded. The list is stored as binary
+ * snapshot (see SnapshotFile) plus a journal of the changes since that
+ * snapshot. Lists stored in the older xdata or xml format are converted
+ * when they are loaded.
  *
  * @author Florian Frankenberger
  * @param <T>
@@ -41,27 +50,94 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
     protected final Logger logger = Logger.getLogger(this.getClass().getCanonicalName());
 
     private final File file;
+    private final File journalFile;
 
-    protected Map<Integer, T> items = new ConcurrentHashMap<Integer, T>();
+    protected volatile Map<Integer, T> items = new ConcurrentHashMap<Integer, T>();
     protected List<T> itemList = new ArrayList<T>();
-    private Map<T, Integer> itemsIndexLookup = new ConcurrentHashMap<T, Integer>();
+    private Map<T, Integer> itemsIndexLookup = new HashMap<T, Integer>();
+
+    private volatile ListSnapshot<T> snapshot = new ListSnapshot<T>(0, new Object[0]);
+    private boolean structureChanged = false;
+
+    /**
+     * how many batches are currently applied (they may be nested)
+     */
+    private int batchDepth = 0;
+
+    private final List<ListIndex<?, T>> indexes = new ArrayList<ListIndex<?, T>>();
+    private final ListIndex<Integer, T> idIndex = addSortedIndex(new Callback<Integer, T>() {
+        @Override
+        public Integer call(T value) {
+            return value.getId();
+        }
+    });
 
-    private final XStream xStream = new XStream(new DomDriver("UTF-8"));
     private final Set<ListListener> listeners = new HashSet<ListListener>();
     private final AfterLoadingHook<T> afterLoadingHook;
 
-    private Long lastUpdate = 0L;
+    /**
+     * in ms: the longest time a change of the list stays unsaved
+     */
+    private static final long SAVE_DELAY = 1000;
+
+    /**
+     * in ms: the longest time a change of an item (like the progress
+     * of a download) stays unsaved
+     */
+    private static final long ITEM_SAVE_DELAY = 10000;
+
+    /**
+     * writes all lists in the background
+     */
+    private static final ScheduledExecutorService PERSISTER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "StorableListPersister");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * the journal is compacted into the snapshot when it contains more
+     * records than this or than there are items in the list
+     */
+    private static final int MIN_COMPACTION_RECORDS = 1000;
+
+    private static final int JOURNAL_MAGIC = 0x424C4A4E; //BLJN
+    private static final byte RECORD_UPSERT = 1;
+    private static final byte RECORD_DELETE = 2;
+
+    private final Object saveLock = new Object();
+    private final Object writeLock = new Object();
+    private ScheduledFuture<?> pendingSave = null;
+    private long pendingSaveTime = 0L;
+
+    /**
+     * ids of the items that changed since the last write (guarded by this)
+     */
+    private Set<Integer> changedIds = new HashSet<Integer>();
+    private boolean snapshotNeeded = false;
+    private int journalRecords = 0;
+
+    /**
+     * the generation of the current snapshot file - 0 if there is none yet
+     * (guarded by writeLock after loading)
+     */
+    private long generation = 0L;
     private final Comparator<T> comparator;
 
+    private final RecordCodec<T> codec;
     private final List<DataMarshaller<T>> dataMarshallers = new ArrayList<DataMarshaller<T>>();
 
     /**
      * default comparator is by id asc
      * @param file
-     * @param dataMarshallers
+     * @param codec
+     * @param dataMarshallers only needed to convert lists stored in the xdata format
      */
-    public StorableList(File file, DataMarshaller<T>... dataMarshallers) {
-        this(null, file, null, dataMarshallers);
+    public StorableList(File file, RecordCodec<T> codec, DataMarshaller<T>... dataMarshallers) {
+        this(null, file, null, codec, dataMarshallers);
     }
 
     /**
@@ -70,9 +146,10 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
      * @param order
      * @param file
      * @param afterLoadingHook
-     * @param dataMarshallers
+     * @param codec
+     * @param dataMarshallers only needed to convert lists stored in the xdata format
      */
-    public StorableList(Comparator<T> order, File file, AfterLoadingHook<T> afterLoadingHook, DataMarshaller<T>... dataMarshallers) {
+    public StorableList(Comparator<T> order, File file, AfterLoadingHook<T> afterLoadingHook, RecordCodec<T> codec, DataMarshaller<T>... dataMarshallers) {
         if (order == null) {
             this.comparator = new Comparator<T>() {
 
@@ -88,23 +165,55 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
 
         this.dataMarshallers.addAll(Arrays.asList(dataMarshallers));
         this.afterLoadingHook = afterLoadingHook;
+        this.codec = codec;
         this.file = file;
+        this.journalFile = getJournalFile(file);
 
-
-        //for backwards compatibility we load the old XML format first
+        //for backwards compatibility we convert the old formats
         final File xmlFile = new File(file.getParentFile(), Utils.getBaseName(file.getName()) + ".xml");
-        if (xmlFile.exists()) {
+        final File xdataFile = new File(file.getParentFile(), Utils.getBaseName(file.getName()) + ".xdata");
+        if (file.exists() || getBackupFile(file).exists() || this.journalFile.exists()) {
+            if ((!file.exists() || !load(file)) && getBackupFile(file).exists()) {
+                //a save might have been interrupted
+                logger.log(Level.WARNING, "{0} broken or missing - restoring backup", this.file);
+                load(getBackupFile(file));
+            }
+            replayJournal(this.journalFile);
+            initItems();
+        } else if (xmlFile.exists()) {
             if (!loadXML(xmlFile)) {
                 logger.log(Level.WARNING, "{0} broken - restoring backup (if existing)", this.file);
                 loadXML(getBackupFile(xmlFile));
             }
-            save(); //save to new format
-            logger.log(Level.WARNING, "Found old xml format file ({0}) and converted it to xdata.", xmlFile);
-
-            xmlFile.delete();
-            getBackupFile(xmlFile).delete();
+            initItems();
+            convert(xmlFile);
+        } else if (xdataFile.exists() || getBackupFile(xdataFile).exists()) {
+            if ((!xdataFile.exists() || !loadXData(xdataFile)) && getBackupFile(xdataFile).exists()) {
+                logger.log(Level.WARNING, "{0} broken or missing - restoring backup", xdataFile);
+                loadXData(getBackupFile(xdataFile));
+            }
+            initItems();
+            convert(xdataFile);
         } else {
-            load(file);
+            initItems();
+        }
+    }
+
+    /**
+     * saves the list in the current format and removes the given file
+     * of an older format
+     *
+     * @param oldFile
+     */
+    private void convert(File oldFile) {
+        synchronized (this) {
+            this.snapshotNeeded = true;
+        }
+        flush();
+        if (this.file.exists()) {
+            logger.log(Level.WARNING, "Found old format file ({0}) and converted it to {1}.", new Object[] {oldFile, this.file});
+            oldFile.delete();
+            getBackupFile(oldFile).delete();
         }
     }
 
@@ -136,61 +245,131 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
     }
 
     public synchronized void delete(Collection<T> items) {
-//        List<Integer> removedIndexes = new ArrayList<Integer>();
         for (T item : items) {
-            this.items.remove(item.getId());
-            item.removeListener(this);
-//            final int itemIndex = this.itemsIndexLookup.get(item);
-//            removedIndexes.add(itemIndex);
+            if (this.items.remove(item.getId()) != null) {
+                this.changedIds.add(item.getId());
+                item.removeListener(this);
+                removeFromList(item);
+            }
         }
-
-        updateList();
-//        for (int index : removedIndexes) {
-//            notifyOnDeleted(index);
-//        }
+        publish();
     }
 
-    public synchronized boolean contains(int id) {
+    public boolean contains(int id) {
         return this.items.containsKey(id);
     }
 
+    /**
+     * applies all changes of the batch at once: the list is sorted once
+     * and the listeners get a single notification, the snapshot is
+     * published once and the list is saved once at the end. The batch itself
+     * must not rely on the order or the indices of the items (get, getIndex)
+     * while it runs, but the secondary indexes stay up to date.
+     * <p>
+     * This is no transaction: readers of the snapshot and of the
+     * synchronized methods (including the secondary indexes) only see the
+     * complete batch, but getById() and contains() don't take the lock and
+     * see added and deleted items right away - just like changes of the
+     * items themselves. If the batch throws an exception, the changes it
+     * applied so far are not undone: they are published and saved like
+     * the changes of a complete batch and the exception is passed on.
+     *
+     * @param batch
+     */
+    public synchronized void batch(Batch<T> batch) {
+        this.batchDepth++;
+        try {
+            batch.apply(this);
+        } finally {
+            if (--this.batchDepth == 0 && this.structureChanged) {
+                rebuildList();
+                save();
+            }
+        }
+    }
+
     public synchronized void update(Collection<T> newItems, boolean remove) {
+        update(newItems, remove
+                ? new Callback<Boolean, T>() {
+                    @Override
+                    public Boolean call(T value) {
+                        return true;
+                    }
+                }
+                : null);
+    }
 
-        //now merge them with the current recording list
+    /**
+     * merges the given items into this list
+     *
+     * @param newItems
+     * @param removeScope if not null, all items this callback returns true for
+     *                    are removed if they are not part of the new items
+     */
+    public synchronized void update(Collection<T> newItems, Callback<Boolean, T> removeScope) {
+        boolean changed = false;
+
+        //now merge them with the current recording list - unchanged
+        //items are neither resorted, nor reported nor saved
         for (T newItem : newItems) {
             if (this.items.containsKey(newItem.getId())) {
                 final T itemToUpdate = this.items.get(newItem.getId());
-                itemToUpdate.update(newItem);
+                if (itemToUpdate.update(newItem)) {
+                    this.changedIds.add(itemToUpdate.getId());
+                    repositionInList(itemToUpdate);
+                    changed = true;
+                }
             } else {
                 this.items.put(newItem.getId(), newItem);
+                this.changedIds.add(newItem.getId());
                 newItem.addListener(this);
+                insertIntoList(newItem);
+                changed = true;
             }
         }
 
-        //store the result
-        updateList();
-
-        if (remove) {
+        if (removeScope != null) {
             final Set<T> hashedNewItems = new HashSet<T>(newItems);
             final List<T> toDelete = new ArrayList<T>();
-            for (T item : this.itemList) {
-                if (!hashedNewItems.contains(item)) {
+            for (T item : this.items.values()) {
+                if (!hashedNewItems.contains(item) && removeScope.call(item)) {
                     toDelete.add(item);
                 }
             }
 
-            delete(toDelete);
+            if (!toDelete.isEmpty()) {
+                delete(toDelete);
+                changed = true;
+            }
         }
 
-        save();
+        if (changed) {
+            publish();
+            save();
+        }
     }
 
-    public synchronized List<T> getAll() {
-        return new ArrayList<T>(this.itemList);
+    /**
+     * returns the current items without locking or copying them. Use this
+     * instead of getAll() if the items are only read or iterated.
+     *
+     * @return
+     */
+    public ListSnapshot<T> getSnapshot() {
+        return this.snapshot;
     }
 
-    public synchronized List<T> getAll(Comparator<T> comparator) {
-        List<T> list = new ArrayList<T>(this.itemList);
+    /**
+     * returns a modifiable copy of the current items
+     *
+     * @return
+     */
+    public List<T> getAll() {
+        return new ArrayList<T>(this.snapshot);
+    }
+
+    public List<T> getAll(Comparator<T> comparator) {
+        List<T> list = new ArrayList<T>(this.snapshot);
         Collections.sort(list, comparator);
         return list;
     }
@@ -202,7 +381,7 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
         return this.itemList.get(index);
     }
 
-    public synchronized T getById(int id) {
+    public T getById(int id) {
         return this.items.get(id);
     }
 
@@ -221,33 +400,32 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
         return this.itemsIndexLookup.get(item);
     }
 
-    public synchronized int getMaxId() {
-        int max = 0;
-        for (T item : itemList) {
-            max = Math.max(max, item.getId());
-        }
-        return max;
+    public int getMaxId() {
+        return Math.max(0, idIndex.getMaxKey(0));
     }
 
     /**
      * returns the max value of all contained objects T's attributes that
-     * you specify by returning it via the callback.call method.
+     * you specify by returning it via the callback.call method. If this
+     * is needed often use a sorted index instead.
      * @param <C>
      * @param valueCallback
      * @param defaultValue the value to return if there are no item in the list
      * @return
      */
-    public synchronized <C extends Comparable<? super C>> C getMax(Callback<C, T> valueCallback, C defaultValue) {
-        List<C> results = sortByCallback(valueCallback);
-        return results.isEmpty() ? defaultValue : results.get(results.size() - 1);
+    public <C extends Comparable<? super C>> C getMax(Callback<C, T> valueCallback, C defaultValue) {
+        C max = null;
+        for (T item : this.snapshot) {
+            final C value = valueCallback.call(item);
+            if (max == null || value.compareTo(max) > 0) {
+                max = value;
+            }
+        }
+        return max == null ? defaultValue : max;
     }
 
-    public synchronized int getMinId() {
-        int min = Integer.MAX_VALUE;
-        for (T item : itemList) {
-            min = Math.min(min, item.getId());
-        }
-        return min;
+    public int getMinId() {
+        return idIndex.getMinKey(Integer.MAX_VALUE);
     }
 
     /**
@@ -256,8 +434,8 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
      * @param valueCallback
      * @return
      */
-    public synchronized boolean containsAtLeastOne(Callback<Boolean, T> valueCallback) {
-        for (T item : itemList) {
+    public boolean containsAtLeastOne(Callback<Boolean, T> valueCallback) {
+        for (T item : this.snapshot) {
             if (valueCallback.call(item)) {
                 return true;
             }
@@ -267,24 +445,55 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
 
     /**
      * returns the min value of all contained objects T's attributes that
-     * you specify by returning it via the callback.call method.
+     * you specify by returning it via the callback.call method. If this
+     * is needed often use a sorted index instead.
      * @param <C>
      * @param valueCallback
      * @param defaultValue the value to return if the list is empty
      * @return
      */
-    public synchronized <C extends Comparable<? super C>> C getMin(Callback<C, T> valueCallback, C defaultValue) {
-        List<C> results = sortByCallback(valueCallback);
-        return results.isEmpty() ? defaultValue : results.get(0);
+    public <C extends Comparable<? super C>> C getMin(Callback<C, T> valueCallback, C defaultValue) {
+        C min = null;
+        for (T item : this.snapshot) {
+            final C value = valueCallback.call(item);
+            if (min == null || value.compareTo(min) < 0) {
+                min = value;
+            }
+        }
+        return min == null ? defaultValue : min;
+    }
+
+    /**
+     * adds an index that groups all items by the key the keyExtractor
+     * returns. The key may only depend on data of the item that notifies
+     * this list when it changes.
+     *
+     * @param <K>
+     * @param keyExtractor
+     * @return
+     */
+    public final synchronized <K> ListIndex<K, T> addIndex(Callback<K, T> keyExtractor) {
+        return registerIndex(new ListIndex<K, T>(this, keyExtractor, false));
     }
 
-    private <C extends Comparable<? super C>> List<C> sortByCallback(Callback<C, T> valueCallback) {
-        List<C> results = new ArrayList<C>();
-        for (T item : itemList) {
-            results.add(valueCallback.call(item));
+    /**
+     * like addIndex but the keys are kept sorted, so the index knows
+     * the min and max key (which must never be null)
+     *
+     * @param <K>
+     * @param keyExtractor
+     * @return
+     */
+    public final synchronized <K extends Comparable<? super K>> ListIndex<K, T> addSortedIndex(Callback<K, T> keyExtractor) {
+        return registerIndex(new ListIndex<K, T>(this, keyExtractor, true));
+    }
+
+    private <K> ListIndex<K, T> registerIndex(ListIndex<K, T> index) {
+        for (T item : this.itemList) {
+            index.add(item);
         }
-        Collections.sort(results);
-        return results;
+        this.indexes.add(index);
+        return index;
     }
 
     public synchronized int getNewPrimaryId() {
@@ -302,23 +511,32 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
     protected final synchronized boolean load(File aFile) {
         if (aFile.exists() && aFile.canRead()) {
             try {
-                final DataMarshaller<T>[] marshallers = (DataMarshaller<T>[]) dataMarshallers.toArray(new DataMarshaller[0]);
-                DataNode dataNode = XData.load(aFile, marshallers);
+                final SnapshotFile.Contents<T> contents = SnapshotFile.read(aFile, this.codec);
+
+                this.items = new ConcurrentHashMap<Integer, T>();
+                for (T item : contents.items) {
+                    this.items.put(item.getId(), item);
+                }
+                this.generation = contents.generation;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not load list from " + aFile, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Deprecated
+    protected final synchronized boolean loadXData(File aFile) {
+        if (aFile.exists() && aFile.canRead()) {
+            try {
+                DataNode dataNode = XData.load(aFile, getMarshallers());
                 final List<T> itemsInFile = (List<T>) (List) dataNode.getObjectList(KEY_ITEMS);
 
                 this.items = new ConcurrentHashMap<Integer, T>();
                 for (T item : itemsInFile) {
                     this.items.put(item.getId(), item);
                 }
-                updateList();
-                for (T item : this.items.values()) {
-                    item.addListener(this);
-                    if (afterLoadingHook != null) {
-                        afterLoadingHook.doAfterLoading(item);
-                    }
-                }
-//                notifyOnInserted(0, this.itemList.size());
-
             } catch (IOException e) {
                 logger.log(Level.WARNING, "Could not load list from " + aFile, e);
                 return false;
@@ -331,17 +549,9 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
     protected final synchronized boolean loadXML(File aFile) {
         if (aFile.exists() && aFile.canRead()) {
             try {
+                final XStream xStream = new XStream(new DomDriver("UTF-8"));
                 final Object fromXML = xStream.fromXML(aFile);
                 this.items = new ConcurrentHashMap<Integer, T>((Map<Integer, T>) fromXML);
-                updateList();
-                for (T item : this.items.values()) {
-                    item.addListener(this);
-                    if (afterLoadingHook != null) {
-                        afterLoadingHook.doAfterLoading(item);
-                    }
-                }
-//                notifyOnInserted(0, this.itemList.size());
-
             } catch (XStreamException e) {
                 logger.log(Level.WARNING, "Could not load list from " + aFile, e);
                 return false;
@@ -350,115 +560,382 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
         return true;
     }
 
-    public synchronized void save() {
-        final File backupFile = getBackupFile(this.file);
-        if (backupFile.exists()) {
-            backupFile.delete();
+    /**
+     * applies the changes recorded in the journal to the items
+     * loaded from the snapshot
+     *
+     * @param journal
+     */
+    private synchronized void replayJournal(File journal) {
+        if (!journal.exists()) {
+            return;
         }
 
-        if (this.file.exists()) {
-            this.file.renameTo(backupFile);
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+            try {
+                if (in.readInt() != JOURNAL_MAGIC) {
+                    throw new IOException("Missing journal header");
+                }
+                final long journalGeneration = in.readLong();
+                if (journalGeneration != this.generation) {
+                    //the journal belongs to another snapshot (e.g. the application
+                    //stopped after writing a snapshot but before deleting the old
+                    //journal) - its records are older than the loaded snapshot
+                    logger.log(Level.WARNING, "Skipping journal {0} of snapshot generation {1} (loaded generation {2})",
+                            new Object[] {journal, journalGeneration, this.generation});
+                    this.snapshotNeeded = true;
+                    return;
+                }
+
+                int type;
+                while ((type = in.read()) != -1) {
+                    final int id = in.readInt();
+                    if (type == RECORD_UPSERT) {
+                        final byte[] data = new byte[in.readInt()];
+                        in.readFully(data);
+                        this.items.put(id, new RecordReader(ByteBuffer.wrap(data), null).read(this.codec));
+                    } else if (type == RECORD_DELETE) {
+                        this.items.remove(id);
+                    } else {
+                        throw new IOException("Unknown record type " + type);
+                    }
+                    this.journalRecords++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            //most likely the last write was interrupted, so everything
+            //up to here is fine - but the rest of the journal is unusable
+            logger.log(Level.WARNING, "Journal " + journal + " broken after " + this.journalRecords + " records", e);
+            this.snapshotNeeded = true;
+        }
+    }
+
+    /**
+     * sorts the loaded items and registers this list with them
+     */
+    private synchronized void initItems() {
+        rebuildList();
+        for (T item : this.items.values()) {
+            item.addListener(this);
+            if (afterLoadingHook != null) {
+                afterLoadingHook.doAfterLoading(item);
+            }
         }
+    }
 
-        saveTo(this.file);
+    /**
+     * saves the given item in the background. Use this when the item
+     * was changed without notifying its listeners.
+     *
+     * @param item
+     */
+    public synchronized void save(T item) {
+        if (this.items.containsKey(item.getId())) {
+            this.changedIds.add(item.getId());
+            save();
+        }
     }
 
-    private static ListDataKey<Object> KEY_ITEMS = ListDataKey.create("items", Object.class);
+    /**
+     * saves the list in the background. Several calls in a short time
+     * result in only one write, but the list is written at the latest
+     * SAVE_DELAY ms after this call. Use flush() to save the list
+     * immediately.
+     */
+    public void save() {
+        scheduleSave(SAVE_DELAY);
+    }
+
+    private void scheduleSave(long delay) {
+        synchronized (saveLock) {
+            final long saveTime = System.currentTimeMillis() + delay;
+            if (pendingSave != null) {
+                if (pendingSaveTime <= saveTime) {
+                    return; //will be saved early enough anyway
+                }
+                pendingSave.cancel(false);
+            }
 
-    private synchronized void saveTo(File aFile) {
+            pendingSaveTime = saveTime;
+            pendingSave = PERSISTER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * writes all changes to disk right now
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            synchronized (saveLock) {
+                if (pendingSave != null) {
+                    pendingSave.cancel(false);
+                    pendingSave = null;
+                }
+            }
+
+            final Map<Integer, T> changes = new HashMap<Integer, T>();
+            List<T> snapshotItems = null;
+            synchronized (this) {
+                if (this.changedIds.isEmpty() && !this.snapshotNeeded) {
+                    return;
+                }
+                for (Integer id : this.changedIds) {
+                    changes.put(id, this.items.get(id)); //null if deleted
+                }
+                this.changedIds = new HashSet<Integer>();
+
+                if (this.snapshotNeeded
+                        || this.journalRecords + changes.size() > Math.max(MIN_COMPACTION_RECORDS, this.items.size())) {
+                    snapshotItems = this.snapshot;
+                    this.snapshotNeeded = false;
+                }
+            }
+
+            final boolean written = snapshotItems != null ? writeSnapshot(snapshotItems) : appendToJournal(changes);
+            if (!written) {
+                //a partially written journal can't be appended to anymore,
+                //so the next write has to be a complete snapshot
+                synchronized (this) {
+                    this.snapshotNeeded = true;
+                }
+                scheduleSave(ITEM_SAVE_DELAY);
+            }
+        }
+    }
+
+    /**
+     * appends the changed items to the journal - this does not depend
+     * on the size of the list
+     *
+     * @param changes the changed items by id - null if the item was deleted
+     * @return
+     */
+    private boolean appendToJournal(Map<Integer, T> changes) {
         try {
-            DataNode dataNode = new DataNode();
-            dataNode.setObjectList(KEY_ITEMS, (List<Object>) (List) this.itemList);
-            final DataMarshaller<T>[] marshallers = (DataMarshaller<T>[]) dataMarshallers.toArray(new DataMarshaller<?>[0]);
-            XData.store(dataNode, aFile, marshallers);
+            final boolean newJournal = !this.journalFile.exists() || this.journalFile.length() == 0;
+            final FileOutputStream fileOut = new FileOutputStream(this.journalFile, true);
+            try {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                if (newJournal) {
+                    out.writeInt(JOURNAL_MAGIC);
+                    out.writeLong(this.generation);
+                }
+                for (Map.Entry<Integer, T> change : changes.entrySet()) {
+                    if (change.getValue() == null) {
+                        out.writeByte(RECORD_DELETE);
+                        out.writeInt(change.getKey());
+                    } else {
+                        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+                        final RecordWriter recordWriter = new RecordWriter(data, false);
+                        this.codec.write(change.getValue(), recordWriter);
+                        recordWriter.flush();
+
+                        out.writeByte(RECORD_UPSERT);
+                        out.writeInt(change.getKey());
+                        out.writeInt(data.size());
+                        data.writeTo(out);
+                    }
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            this.journalRecords += changes.size();
+            return true;
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Could not store list to " + items, e);
+            logger.log(Level.WARNING, "Could not append to " + this.journalFile, e);
+            return false;
         }
     }
 
-    private synchronized void updateList() {
-        itemList.clear();
+    /**
+     * writes all items as new snapshot and starts a new journal. The data is
+     * written to a temporary file first, so the current file is only replaced
+     * by a completely written one. The new snapshot gets the next generation,
+     * so the old journal is skipped on loading even if it can't be deleted.
+     */
+    private boolean writeSnapshot(List<T> snapshotItems) {
+        final File tempFile = new File(this.file.getParentFile(), this.file.getName() + ".tmp");
+        final long newGeneration = this.generation + 1;
+        try {
+            SnapshotFile.write(tempFile, newGeneration, snapshotItems, this.codec);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not store list to " + tempFile, e);
+            return false;
+        }
+
+        final File backupFile = getBackupFile(this.file);
+        if (backupFile.exists()) {
+            backupFile.delete();
+        }
 
-        for (T item : this.items.values()) {
-            this.itemList.add(item);
+        if (this.file.exists()) {
+            this.file.renameTo(backupFile);
+        }
+
+        if (!tempFile.renameTo(this.file)) {
+            logger.log(Level.WARNING, "Could not rename {0} to {1}", new Object[] {tempFile, this.file});
+            return false;
         }
+        this.generation = newGeneration;
+
+        //all changes are contained in the snapshot now - the old journal
+        //must not be appended to, so a failed delete needs another snapshot
+        if (this.journalFile.exists() && !this.journalFile.delete()) {
+            logger.log(Level.WARNING, "Could not delete {0}", this.journalFile);
+            return false;
+        }
+        this.journalRecords = 0;
+        return true;
+    }
 
-        Collections.sort(itemList, comparator);
+    private static final ListDataKey<Object> KEY_ITEMS = ListDataKey.create("items", Object.class);
 
-        Set<Integer> addedIndexes = new LinkedHashSet<Integer>();
-        Set<Integer> updatedIndexes = new LinkedHashSet<Integer>();
-        TreeSet<Integer> removedIndexes = new TreeSet<Integer>(new Comparator<Integer>() {
+    private DataMarshaller<T>[] getMarshallers() {
+        return (DataMarshaller<T>[]) dataMarshallers.toArray(new DataMarshaller<?>[0]);
+    }
 
-            @Override
-            public int compare(Integer o1, Integer o2) {
-                return Integer.valueOf(o1).compareTo(o2);
+    /**
+     * sorts all items anew - only used when the whole content changes
+     */
+    private synchronized void rebuildList() {
+        this.itemList = new ArrayList<T>(this.items.values());
+        Collections.sort(this.itemList, comparator);
+
+        this.itemsIndexLookup = new HashMap<T, Integer>();
+        reindex(0, this.itemList.size() - 1);
+        for (ListIndex<?, T> index : this.indexes) {
+            index.clear();
+            for (T item : this.itemList) {
+                index.add(item);
             }
+        }
+        this.structureChanged = true;
+        publish();
+        notifyOnDataChanged();
+    }
 
-        });
+    /**
+     * inserts the item at its sorted position. The list is kept sorted
+     * all the time, so this only shifts the items behind it.
+     *
+     * @param item
+     */
+    private void insertIntoList(T item) {
+        if (this.batchDepth > 0) {
+            //sorted in when the batch is finished
+            for (ListIndex<?, T> listIndex : this.indexes) {
+                listIndex.add(item);
+            }
+            this.structureChanged = true;
+            return;
+        }
 
-        Map<T, Integer> newItemIndexLookup = new HashMap<T, Integer>();
-        for (int i = 0; i < this.itemList.size(); ++i) {
-            final T item = this.itemList.get(i);
-            newItemIndexLookup.put(item, i);
-            if (!this.itemsIndexLookup.containsKey(item)) {
-                addedIndexes.add(i);
-            } else {
-                if (this.itemsIndexLookup.get(item) != i) {
-                    updatedIndexes.add(i);
-                    updatedIndexes.add(this.itemsIndexLookup.get(item));
-                }
+        final int index = getInsertionIndex(item);
+        this.itemList.add(index, item);
+        reindex(index, this.itemList.size() - 1);
+        for (ListIndex<?, T> listIndex : this.indexes) {
+            listIndex.add(item);
+        }
+        this.structureChanged = true;
+        notifyOnInserted(index);
+    }
+
+    private void removeFromList(T item) {
+        if (this.batchDepth > 0) {
+            //removed when the list is rebuilt after the batch
+            for (ListIndex<?, T> listIndex : this.indexes) {
+                listIndex.remove(item);
             }
+            this.structureChanged = true;
+            return;
         }
 
-        for (Integer i : this.itemsIndexLookup.values()) {
-            if (i >= this.itemList.size()) {
-                removedIndexes.add(i);
-                updatedIndexes.remove(i);
+        final Integer index = this.itemsIndexLookup.remove(item);
+        if (index != null) {
+            for (ListIndex<?, T> listIndex : this.indexes) {
+                listIndex.remove(item);
             }
+            this.itemList.remove(index.intValue());
+            reindex(index, this.itemList.size() - 1);
+            this.structureChanged = true;
+            notifyOnDeleted(index);
         }
+    }
 
-        this.itemsIndexLookup = newItemIndexLookup;
+    /**
+     * moves a changed item to its new sorted position (if its position
+     * changed at all) and notifies about the affected rows
+     *
+     * @param item
+     */
+    private void repositionInList(T item) {
+        if (this.batchDepth > 0) {
+            //resorted when the batch is finished
+            if (this.items.get(item.getId()) == item) {
+                for (ListIndex<?, T> listIndex : this.indexes) {
+                    listIndex.update(item);
+                }
+                this.structureChanged = true;
+            }
+            return;
+        }
 
-        for (Integer index : addedIndexes) {
-            notifyOnInserted(index);
+        final Integer index = this.itemsIndexLookup.get(item);
+        if (index == null) {
+            return;
+        }
+        for (ListIndex<?, T> listIndex : this.indexes) {
+            listIndex.update(item);
         }
 
-        for (Integer index : updatedIndexes) {
+        if ((index == 0 || comparator.compare(this.itemList.get(index - 1), item) <= 0)
+                && (index == this.itemList.size() - 1 || comparator.compare(item, this.itemList.get(index + 1)) <= 0)) {
+            //still in order
             notifyOnUpdated(index);
+            return;
         }
 
-        //check if we have a continous row
-        if (!removedIndexes.isEmpty()) {
-            if (removedIndexes.size() > 1) {
-                Integer lastIndex = null;
-                int min = Integer.MAX_VALUE;
-                int max = 0;
-                boolean row = true;
+        this.itemList.remove(index.intValue());
+        final int newIndex = getInsertionIndex(item);
+        this.itemList.add(newIndex, item);
 
-                for (Integer index : removedIndexes) {
-                    min = Math.min(min, index);
-                    max = Math.max(max, index);
-
-                    if (lastIndex != null) {
-                        if (index != lastIndex + 1) {
-                            row = false;
-                            break;
-                        }
-                    }
-                    lastIndex = index;
-                }
+        final int from = Math.min(index, newIndex);
+        final int to = Math.max(index, newIndex);
+        reindex(from, to);
+        this.structureChanged = true;
+        notifyOnUpdated(from, to);
+    }
 
-                if (row) {
-                    notifyOnDeleted(min, max);
-                } else {
-                    //too much deleted so we fire a data changed
-                    notifyOnDataChanged();
-                }
-            } else {
-                notifyOnDeleted(removedIndexes.first());
-            }
+    /**
+     * publishes the current items as new snapshot if they changed
+     * since the last snapshot
+     */
+    private void publish() {
+        if (this.structureChanged && this.batchDepth == 0) {
+            this.snapshot = new ListSnapshot<T>(this.snapshot.getVersion() + 1, this.itemList.toArray());
+            this.structureChanged = false;
         }
+    }
 
+    private int getInsertionIndex(T item) {
+        final int index = Collections.binarySearch(this.itemList, item, comparator);
+        return index < 0 ? -(index + 1) : index;
+    }
+
+    private void reindex(int from, int to) {
+        for (int i = from; i <= to; ++i) {
+            this.itemsIndexLookup.put(this.itemList.get(i), i);
+        }
     }
 
     private void notifyOnUpdated(int index) {
@@ -499,19 +976,17 @@ public class StorableList<T extends Serializable & Storable<T>> implements Updat
 
     @Override
     public synchronized void onUpdate(T item) {
-        //only saveXML in 10 sec interval on update!
-        if (System.currentTimeMillis() - lastUpdate > 10000) {
-            this.save();
-            lastUpdate = System.currentTimeMillis();
-        }
-        this.updateList();
-        final Integer itemId = this.itemsIndexLookup.get(item);
-        if (itemId != null) {
-            notifyOnUpdated(itemId);
-        }
+        this.changedIds.add(item.getId());
+        scheduleSave(ITEM_SAVE_DELAY);
+        repositionInList(item);
+        publish();
     }
 
     private static File getBackupFile(File file) {
         return new File(file.getParentFile(), file.getName() + ".bak");
     }
+
+    private static File getJournalFile(File file) {
+        return new File(file.getParentFile(), file.getName() + ".journal");
+    }
 }
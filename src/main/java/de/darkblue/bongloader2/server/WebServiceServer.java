@@ -20,6 +20,7 @@ import de.darkblue.bongloader2.Application;
 import de.darkblue.bongloader2.ConfigurationKey;
 import de.darkblue.bongloader2.controller.DownloadController;
 import de.darkblue.bongloader2.controller.DownloadController.ControllerState;
+import de.darkblue.bongloader2.model.ArchivedDownload;
 import de.darkblue.bongloader2.model.Download;
 import de.darkblue.bongloader2.model.Recording;
 import de.darkblue.bongloader2.model.Recording.MovieFile;
@@ -73,7 +74,7 @@ public class WebServiceServer {
             @Override
             public Object call(JsonEmpty value) {
                 JsonRecordingsResult result = new JsonRecordingsResult();
-                result.recordings = marshalRecordings(application.getRecordingList().getAll());
+                result.recordings = marshalRecordings(application.getRecordingList().getSnapshot());
                 return result;
             }
         });
@@ -82,7 +83,17 @@ public class WebServiceServer {
             @Override
             public Object call(JsonEmpty value) {
                 JsonDownloadsResult result = new JsonDownloadsResult();
-                result.downloads = marshalDownloads(application.getDownloadList().getAll());
+                result.downloads = marshalDownloads(application.getDownloadList().getSnapshot());
+                return result;
+            }
+        });
+
+        jsonHandler.putMapping(PATH_JSON_PREFIX + "get_archived_downloads", JsonArchivedDownloadsRequest.class, new JsonHandler.JsonRequestHandler<JsonArchivedDownloadsRequest>() {
+            @Override
+            public Object call(JsonArchivedDownloadsRequest value) {
+                JsonArchivedDownloadsResult result = new JsonArchivedDownloadsResult();
+                result.downloads = marshalArchivedDownloads(application.getDownloadArchive().find(
+                        value.recordingId, value.title, value.from, value.to));
                 return result;
             }
         });
@@ -171,11 +182,11 @@ public class WebServiceServer {
         jsonHandler.putMapping(PATH_JSON_PREFIX + "shutdown", JsonEmpty.class, new JsonHandler.JsonRequestHandler<JsonEmpty>() {
             @Override
             public Object call(JsonEmpty value) {
-                LOGGER.info("Shutdown requested via web service - will occur in 2 seconds.");
-                new Thread() {
+                LOGGER.info("Shutdown requested via web service.");
+                //the web server is stopped last, so this response is sent anyway
+                new Thread("shutdown") {
                     @Override
                     public void run() {
-                        try { Thread.sleep(2000); } catch (InterruptedException e) { /* ignore */ }
                         application.shutdownApplication(false);
                     }
                 }.start();
@@ -210,6 +221,14 @@ public class WebServiceServer {
         return results;
     }
 
+    private List<JsonArchivedDownloadResult> marshalArchivedDownloads(List<ArchivedDownload> downloads) {
+        List<JsonArchivedDownloadResult> results = new ArrayList<JsonArchivedDownloadResult>();
+        for (ArchivedDownload download : downloads) {
+            results.add(marshal(download));
+        }
+        return results;
+    }
+
     private JsonRecordingResult marshal(Recording recording) {
         JsonRecordingResult result = new JsonRecordingResult();
         result.id = recording.getId();
@@ -243,6 +262,23 @@ public class WebServiceServer {
 
         result.downloading = download.isDownloading();
         result.finished = download.isDownloaded();
+        result.checksum = download.getChecksum() == null ? null : download.getChecksum().toHexString();
+        return result;
+    }
+
+    private JsonArchivedDownloadResult marshal(ArchivedDownload download) {
+        JsonArchivedDownloadResult result = new JsonArchivedDownloadResult();
+        result.downloadId = download.getDownloadId();
+        result.recordingId = download.getRecordingId();
+        result.title = download.getTitle();
+        result.subtitle = download.getSubtitle();
+        result.channel = download.getChannel();
+        result.start = download.getStart();
+        result.quality = download.getQuality();
+        result.file = download.getTargetFile().getAbsolutePath();
+        result.totalBytes = download.getTotalBytes();
+        result.downloadedAt = download.getDownloadedAt();
+        result.checksum = download.getChecksum() == null ? null : String.format("%08x", download.getChecksum());
         return result;
     }
 
@@ -298,6 +334,32 @@ public class WebServiceServer {
         public boolean finished;
         public String ETA;
         public String downloadFile;
+        public String checksum;
+    }
+
+    public static class JsonArchivedDownloadsRequest {
+        public Integer recordingId;
+        public String title;
+        public Date from;
+        public Date to;
+    }
+
+    public static class JsonArchivedDownloadsResult {
+        public List<JsonArchivedDownloadResult> downloads;
+    }
+
+    public static class JsonArchivedDownloadResult {
+        public int downloadId;
+        public int recordingId;
+        public String title;
+        public String subtitle;
+        public String channel;
+        public Date start;
+        public Quality quality;
+        public String file;
+        public long totalBytes;
+        public Date downloadedAt;
+        public String checksum;
     }
 
     public static class JsonEnqueueDownloadRequest {
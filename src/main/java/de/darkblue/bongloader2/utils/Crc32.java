@@ -0,0 +1,191 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.utils;
+
+import java.io.Serializable;
+
+/**
+ * An immutable CRC-32 (the one used by zip) over a number of bytes. Unlike
+ * java.util.zip.CRC32 this can be continued from a stored value and two
+ * checksums of adjacent byte ranges can be combined to the checksum of the
+ * whole range without reading the data again.
+ *
+ * @author Florian Frankenberger
+ */
+public final class Crc32 implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int POLYNOMIAL = 0xedb88320;
+    private static final int[] TABLE = new int[256];
+
+    public static final Crc32 EMPTY = new Crc32(0L, 0L);
+
+    static {
+        for (int i = 0; i < TABLE.length; ++i) {
+            int crc = i;
+            for (int k = 0; k < 8; ++k) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private final long value;
+    private final long length;
+
+    public Crc32(long value, long length) {
+        this.value = value;
+        this.length = length;
+    }
+
+    /**
+     * the checksum value (like java.util.zip.CRC32.getValue())
+     * @return
+     */
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * the amount of bytes this checksum was calculated over
+     * @return
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * returns the checksum of the bytes of this checksum followed by the
+     * given bytes
+     *
+     * @param buffer
+     * @param offset
+     * @param count
+     * @return
+     */
+    public Crc32 update(byte[] buffer, int offset, int count) {
+        int crc = ~((int) this.value);
+        for (int i = offset; i < offset + count; ++i) {
+            crc = TABLE[(crc ^ buffer[i]) & 0xff] ^ (crc >>> 8);
+        }
+        return new Crc32((~crc) & 0xffffffffL, this.length + count);
+    }
+
+    /**
+     * returns the checksum of the bytes of this checksum followed by the
+     * bytes of the other checksum (crc32_combine of zlib)
+     *
+     * @param other
+     * @return
+     */
+    public Crc32 append(Crc32 other) {
+        long len = other.length;
+        if (len <= 0) {
+            return this;
+        }
+
+        final long[] even = new long[32];
+        final long[] odd = new long[32];
+
+        //operator for one zero bit
+        odd[0] = POLYNOMIAL & 0xffffffffL;
+        long row = 1;
+        for (int n = 1; n < 32; ++n) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        //operators for two and four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        //apply len zero bytes to our crc
+        long crc = this.value;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len & 1) != 0) {
+                crc = gf2MatrixTimes(even, crc);
+            }
+            len >>= 1;
+            if (len == 0) {
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if ((len & 1) != 0) {
+                crc = gf2MatrixTimes(odd, crc);
+            }
+            len >>= 1;
+        } while (len != 0);
+
+        return new Crc32(crc ^ other.value, this.length + other.length);
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; ++n) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * the value as 8 digit hex string
+     * @return
+     */
+    public String toHexString() {
+        return String.format("%08x", value);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final Crc32 other = (Crc32) obj;
+        return this.value == other.value && this.length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 41 * hash + (int) (this.value ^ (this.value >>> 32));
+        hash = 41 * hash + (int) (this.length ^ (this.length >>> 32));
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "Crc32{" + "value=" + toHexString() + ", length=" + length + '}';
+    }
+
+}
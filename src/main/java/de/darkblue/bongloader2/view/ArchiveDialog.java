@@ -0,0 +1,246 @@
+/* 
+ * Copyright (C) 2016 Florian Frankenberger.
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License 
+ * along with this library; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.darkblue.bongloader2.view;
+
+import de.darkblue.bongloader2.exception.ReportableException;
+import de.darkblue.bongloader2.model.ArchivedDownload;
+import de.darkblue.bongloader2.model.DownloadArchive;
+import de.darkblue.bongloader2.utils.ToolBox;
+import java.awt.BorderLayout;
+import java.awt.Desktop;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingWorker;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Searches the archived downloads by title, recording id and the
+ * date they were finished
+ *
+ * @author Florian Frankenberger
+ */
+public class ArchiveDialog extends JDialog {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(ArchiveDialog.class.getCanonicalName());
+
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+
+    private static enum Period {
+
+        ALL("Alle", 0),
+        LAST_MONTH("Letzte 30 Tage", 30),
+        LAST_QUARTER("Letzte 90 Tage", 90),
+        LAST_YEAR("Letzte 365 Tage", 365);
+
+        private final String humanReadable;
+        private final int days;
+
+        private Period(String humanReadable, int days) {
+            this.humanReadable = humanReadable;
+            this.days = days;
+        }
+
+        public Date getFrom() {
+            return days == 0 ? null : new Date(System.currentTimeMillis() - days * DAY);
+        }
+
+        @Override
+        public String toString() {
+            return humanReadable;
+        }
+
+    }
+
+    private final DownloadArchive downloadArchive;
+    private final ArchiveTableModel tableModel = new ArchiveTableModel();
+
+    private final JTextField searchField = new JTextField(25);
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private final JComboBox periodComboBox = new JComboBox(Period.values());
+    private final JButton searchButton = new JButton("Suchen");
+    private final JLabel resultLabel = new JLabel();
+
+    public ArchiveDialog(java.awt.Frame parent, DownloadArchive downloadArchive) {
+        super(parent, "Download-Archiv", false);
+        this.downloadArchive = downloadArchive;
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        final JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        searchPanel.add(new JLabel("Titel oder Aufnahme-Nr.:"));
+        searchPanel.add(searchField);
+        searchPanel.add(periodComboBox);
+        searchPanel.add(searchButton);
+
+        final ActionListener searchListener = new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                search();
+            }
+
+        };
+        searchField.addActionListener(searchListener);
+        searchButton.addActionListener(searchListener);
+
+        final JTable table = new JTable(tableModel);
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.setAutoCreateRowSorter(true);
+        table.addMouseListener(new MouseAdapter() {
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && table.getSelectedRow() >= 0) {
+                    openFolder(tableModel.get(table.convertRowIndexToModel(table.getSelectedRow())));
+                }
+            }
+
+        });
+
+        getContentPane().setLayout(new BorderLayout());
+        getContentPane().add(searchPanel, BorderLayout.NORTH);
+        getContentPane().add(new JScrollPane(table), BorderLayout.CENTER);
+        getContentPane().add(resultLabel, BorderLayout.SOUTH);
+
+        setSize(900, 500);
+        setLocationRelativeTo(parent);
+
+        search();
+    }
+
+    private void search() {
+        final String text = searchField.getText().trim();
+        final Date from = ((Period) periodComboBox.getSelectedItem()).getFrom();
+
+        searchButton.setEnabled(false);
+        resultLabel.setText("Suche im Archiv ...");
+
+        //the archive is read from disk with the first search
+        new SwingWorker<List<ArchivedDownload>, Void>() {
+
+            @Override
+            protected List<ArchivedDownload> doInBackground() throws Exception {
+                return downloadArchive.search(text, from, null);
+            }
+
+            @Override
+            protected void done() {
+                searchButton.setEnabled(true);
+                try {
+                    final List<ArchivedDownload> downloads = get();
+                    tableModel.setDownloads(downloads);
+                    resultLabel.setText(downloads.size() + " archivierte Downloads gefunden");
+                } catch (InterruptedException e) {
+                    //ignore
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.WARNING, "Could not search the download archive", e.getCause());
+                    resultLabel.setText("Das Archiv konnte nicht durchsucht werden");
+                }
+            }
+
+        }.execute();
+    }
+
+    private void openFolder(ArchivedDownload download) {
+        try {
+            Desktop.getDesktop().open(download.getTargetFile().getParentFile().getCanonicalFile());
+        } catch (Exception ex) {
+            ReportableException e = new ReportableException("Downloadordner kann nicht geöffnet werden", "Leider kann der Downloadordner nicht geöffnet werden");
+            LOGGER.log(Level.WARNING, "Can't open download folder", e);
+        }
+    }
+
+    private static class ArchiveTableModel extends AbstractTableModel {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final String[] COLUMNS = {"Fertig am", "Titel", "Untertitel", "Sender", "Qualität", "Größe", "Datei"};
+
+        private List<ArchivedDownload> downloads = new ArrayList<ArchivedDownload>();
+
+        public void setDownloads(List<ArchivedDownload> downloads) {
+            this.downloads = downloads;
+            fireTableDataChanged();
+        }
+
+        public ArchivedDownload get(int row) {
+            return downloads.get(row);
+        }
+
+        @Override
+        public int getRowCount() {
+            return downloads.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int columnIndex) {
+            return columnIndex == 0 ? Date.class : String.class;
+        }
+
+        @Override
+        public Object getValueAt(int rowIndex, int columnIndex) {
+            final ArchivedDownload download = downloads.get(rowIndex);
+            switch (columnIndex) {
+                case 0:
+                    return download.getDownloadedAt();
+                case 1:
+                    return download.getTitle();
+                case 2:
+                    return download.getSubtitle();
+                case 3:
+                    return download.getChannel();
+                case 4:
+                    return download.getQuality().name();
+                case 5:
+                    return ToolBox.toHumanReadableSize(download.getTotalBytes());
+                default:
+                    return download.getTargetFile().getAbsolutePath();
+            }
+        }
+
+    }
+
+}
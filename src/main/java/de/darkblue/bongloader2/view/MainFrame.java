@@ -26,6 +26,7 @@ import de.darkblue.bongloader2.controller.DownloadController;
 import de.darkblue.bongloader2.model.Download;
 import de.darkblue.bongloader2.model.Recording;
 import de.darkblue.bongloader2.model.data.Callback;
+import de.darkblue.bongloader2.model.data.ListIndex;
 import de.darkblue.bongloader2.view.model.DownloadListTableModel;
 import de.darkblue.bongloader2.view.model.RecordingListTableModel;
 import de.darkblue.bongloader2.model.data.ListListener;
@@ -76,6 +77,7 @@ public class MainFrame extends javax.swing.JFrame implements UpdateableListener<
 
     private final Application application;
     private final Configuration config;
+    private final ListIndex<Boolean, Download> downloadsByActivity;
 
     static {
         try {
@@ -91,6 +93,12 @@ public class MainFrame extends javax.swing.JFrame implements UpdateableListener<
     /** Creates new form MainFrame */
     public MainFrame(Application application) {
         this.application = application;
+        this.downloadsByActivity = application.getDownloadList().addIndex(new Callback<Boolean, Download>() {
+            @Override
+            public Boolean call(Download value) {
+                return value.isDownloading();
+            }
+        });
         application.getDownloadController().addListener(this);
 
         createTrayIcon();
@@ -189,6 +197,22 @@ public class MainFrame extends javax.swing.JFrame implements UpdateableListener<
         setupMeanSpeedLabel();
 
         setupSpeedPopupMenu();
+        setupArchiveMenuItem();
+    }
+
+    private void setupArchiveMenuItem() {
+        final JMenuItem archiveMenuItem = new JMenuItem("Download-Archiv durchsuchen ...");
+        archiveMenuItem.setIcon(new ImageIcon(getClass().getResource("/de/darkblue/bongloader2/icons/package_green.png")));
+        archiveMenuItem.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                new ArchiveDialog(MainFrame.this, application.getDownloadArchive()).setVisible(true);
+            }
+
+        });
+        downloadMenu.add(new JSeparator());
+        downloadMenu.add(archiveMenuItem);
     }
 
     private void setupSpeedPopupMenu() {
@@ -307,12 +331,7 @@ public class MainFrame extends javax.swing.JFrame implements UpdateableListener<
     }
 
     private void updateDownloadsCounter() {
-        final StorableList<Download> downloads = application.getDownloadList();
-
-        int total = 0;
-        for (Download download : downloads.getAll()) {
-            total += (download.isDownloading() ? 1 : 0);
-        }
+        final int total = downloadsByActivity.count(true);
 
         final String newTitle = "Downloads" + (total > 0 ? " [" + total + " aktiv]" : "");
         boolean changed = !newTitle.equals(this.tab.getTitleAt(1));
@@ -1307,7 +1326,7 @@ public class MainFrame extends javax.swing.JFrame implements UpdateableListener<
 
     private void deleteFinishedMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_deleteFinishedMenuItemActionPerformed
         final List<Download> finished = new ArrayList<Download>();
-        for (Download download : application.getDownloadList().getAll()) {
+        for (Download download : application.getDownloadList().getSnapshot()) {
             if (download.isDownloaded() && download.getDownloadedBytes() == download.getTotalBytes()) {
                 finished.add(download);
             }
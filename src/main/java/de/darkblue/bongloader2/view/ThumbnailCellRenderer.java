@@ -40,17 +40,18 @@ import org.imgscalr.Scalr;
 public class ThumbnailCellRenderer implements TableCellRenderer {
 
     private static final Logger LOGGER = Logger.getLogger(ThumbnailCellRenderer.class.getCanonicalName());
-    private final Map<URL, SoftReference<DeferredLoadingCellComponent>> rendererCache = new HashMap<URL, SoftReference<DeferredLoadingCellComponent>>();
+    private final Map<String, SoftReference<DeferredLoadingCellComponent>> rendererCache = new HashMap<String, SoftReference<DeferredLoadingCellComponent>>();
 
     @SuppressWarnings("serial")
     @Override
     public Component getTableCellRendererComponent(JTable table, final Object value, boolean isSelected, boolean hasFocus, int row, int column) {
         final Recording recording = (Recording) value;
-        final URL url = recording.getThumbUrl();
-        DeferredLoadingCellComponent renderer = rendererCache.containsKey(url) ? rendererCache.get(url).get() : null;
+        //the url is only parsed for a new renderer
+        final String location = recording.getThumbLocation();
+        DeferredLoadingCellComponent renderer = rendererCache.containsKey(location) ? rendererCache.get(location).get() : null;
         if (renderer == null) {
-            renderer = new DeferredLoadingCellComponent(table, url);
-            rendererCache.put(url, new SoftReference<DeferredLoadingCellComponent>(renderer));
+            renderer = new DeferredLoadingCellComponent(table, recording.getThumbUrl());
+            rendererCache.put(location, new SoftReference<DeferredLoadingCellComponent>(renderer));
         }
         renderer.setSelected(isSelected);
         renderer.setHd(recording.hasMovieFile(Recording.MovieFile.Quality.HD));